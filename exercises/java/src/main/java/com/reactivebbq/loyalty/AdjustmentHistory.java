@@ -0,0 +1,124 @@
+package com.reactivebbq.loyalty;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable list of adjustments that shares its backing array with the
+ * version it was appended to. Appending to the newest version claims the
+ * next free slot of the shared array in place, so building a history one
+ * adjustment at a time only pays for the occasional doubling of the array.
+ * Appending to an older version copies its prefix into a new array.
+ *
+ * Adjustments are packed as their balance adjustment (positive for an
+ * Award, negative for a Deduct) and only turned back into LoyaltyAdjustment
+ * objects when they are read through the List interface.
+ */
+final class AdjustmentHistory extends AbstractList<LoyaltyAdjustment> {
+    static final AdjustmentHistory empty =
+        new AdjustmentHistory(new Store(new int[0], 0), 0);
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final class Store {
+        private volatile int[] items;
+        private int size;
+
+        Store(int[] items, int size) {
+            this.items = items;
+            this.size = size;
+        }
+    }
+
+    private final Store store;
+    private final int size;
+
+    private AdjustmentHistory(Store store, int size) {
+        this.store = store;
+        this.size = size;
+    }
+
+    static AdjustmentHistory of(List<LoyaltyAdjustment> adjustments) {
+        if(adjustments instanceof AdjustmentHistory)
+            return (AdjustmentHistory) adjustments;
+
+        int[] balanceAdjustments = new int[adjustments.size()];
+
+        for(int i = 0; i < balanceAdjustments.length; i++) {
+            balanceAdjustments[i] = adjustments.get(i).getBalanceAdjustment();
+        }
+
+        return of(balanceAdjustments, balanceAdjustments.length);
+    }
+
+    static AdjustmentHistory of(int[] balanceAdjustments, int count) {
+        if(count == 0)
+            return empty;
+
+        int[] items = Arrays.copyOf(
+            balanceAdjustments,
+            Math.max(INITIAL_CAPACITY, count)
+        );
+
+        return new AdjustmentHistory(new Store(items, count), count);
+    }
+
+    AdjustmentHistory append(LoyaltyAdjustment adjustment) {
+        int balanceAdjustment = adjustment.getBalanceAdjustment();
+
+        if(size > 0) {
+            synchronized (store) {
+                if(store.size == size) {
+                    int[] items = store.items;
+
+                    if(size == items.length)
+                        items = Arrays.copyOf(items, size * 2);
+
+                    items[size] = balanceAdjustment;
+                    store.items = items;
+                    store.size = size + 1;
+
+                    return new AdjustmentHistory(store, size + 1);
+                }
+            }
+        }
+
+        int[] items = Arrays.copyOf(
+            store.items,
+            Math.max(INITIAL_CAPACITY, size * 2)
+        );
+        items[size] = balanceAdjustment;
+
+        return new AdjustmentHistory(new Store(items, size + 1), size + 1);
+    }
+
+    int balanceAdjustmentAt(int index) {
+        Objects.checkIndex(index, size);
+        return store.items[index];
+    }
+
+    void forEachBalanceAdjustment(IntConsumer action) {
+        int[] items = store.items;
+
+        for(int i = 0; i < size; i++) {
+            action.accept(items[i]);
+        }
+    }
+
+    int[] toBalanceAdjustments() {
+        return Arrays.copyOf(store.items, size);
+    }
+
+    @Override
+    public LoyaltyAdjustment get(int index) {
+        return LoyaltyAdjustment.fromBalanceAdjustment(balanceAdjustmentAt(index));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
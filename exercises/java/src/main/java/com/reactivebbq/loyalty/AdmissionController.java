@@ -0,0 +1,152 @@
+package com.reactivebbq.loyalty;
+
+import com.lightbend.cinnamon.akka.CinnamonMetrics;
+import com.lightbend.cinnamon.metric.GaugeLong;
+import com.lightbend.cinnamon.metric.Rate;
+import com.lightbend.cinnamon.metric.Recorder;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Bounds the requests a node works on at once, so that under overload new
+// requests are turned away immediately instead of queueing behind asks
+// that will time out anyway. The node wide limit adapts to latency: it
+// grows by one while requests complete within the target latency and the
+// limit is in use, and shrinks by the backoff ratio when one does not.
+// Bulk requests take a slot like any other, but their latency grows with
+// their size rather than with the load, so it does not move the limit.
+class AdmissionController {
+    // A ticket is handed out for each admitted request and must be
+    // completed. Only its first completion counts.
+    class Ticket {
+        private final LoyaltyId loyaltyId;
+        private final boolean bulk;
+        private final long startedAt;
+        private boolean completed = false;
+
+        private Ticket(LoyaltyId loyaltyId, boolean bulk, long startedAt) {
+            this.loyaltyId = loyaltyId;
+            this.bulk = bulk;
+            this.startedAt = startedAt;
+        }
+
+        void complete(boolean succeeded) {
+            release(this, succeeded);
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxInFlightPerAccount;
+    private final long targetLatency;
+    private final double backoffRatio;
+    private final Duration retryAfter;
+    private final LongSupplier nanoClock;
+
+    private final GaugeLong limitGauge;
+    private final GaugeLong inFlightGauge;
+    private final Rate rejections;
+    private final Recorder latency;
+
+    private final Map<LoyaltyId, Integer> inFlightPerAccount = new HashMap<>();
+    private double limit;
+    private int inFlight = 0;
+
+    AdmissionController(Config config, CinnamonMetrics metrics) {
+        this(config, metrics, System::nanoTime);
+    }
+
+    AdmissionController(
+        Config config,
+        CinnamonMetrics metrics,
+        LongSupplier nanoClock
+    ) {
+        this.minLimit = config.getInt("min-limit");
+        this.maxLimit = config.getInt("max-limit");
+        this.maxInFlightPerAccount = config.getInt("max-in-flight-per-account");
+        this.targetLatency = config.getDuration("target-latency").toNanos();
+        this.backoffRatio = config.getDouble("backoff-ratio");
+        this.retryAfter = config.getDuration("retry-after");
+        this.nanoClock = nanoClock;
+        this.limit = config.getInt("initial-limit");
+
+        this.limitGauge = metrics.createGaugeLong("admissionLimit");
+        this.inFlightGauge = metrics.createGaugeLong("admissionInFlight");
+        this.rejections = metrics.createRate("admissionRejections");
+        this.latency = metrics.createRecorder("admissionLatency");
+
+        limitGauge.set((long) limit);
+    }
+
+    Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    // Null when the node, or the account if one is given, is at its limit.
+    synchronized Ticket tryAcquire(LoyaltyId loyaltyId) {
+        return tryAcquire(loyaltyId, false);
+    }
+
+    // Null when the node is at its limit.
+    synchronized Ticket tryAcquireBulk() {
+        return tryAcquire(null, true);
+    }
+
+    private Ticket tryAcquire(LoyaltyId loyaltyId, boolean bulk) {
+        int accountInFlight = loyaltyId == null
+            ? 0
+            : inFlightPerAccount.getOrDefault(loyaltyId, 0);
+
+        if(inFlight >= (int) limit || accountInFlight >= maxInFlightPerAccount) {
+            rejections.mark();
+            return null;
+        }
+
+        inFlight++;
+        inFlightGauge.set(inFlight);
+
+        if(loyaltyId != null)
+            inFlightPerAccount.put(loyaltyId, accountInFlight + 1);
+
+        return new Ticket(loyaltyId, bulk, nanoClock.getAsLong());
+    }
+
+    private synchronized void release(Ticket ticket, boolean succeeded) {
+        if(ticket.completed)
+            return;
+
+        ticket.completed = true;
+
+        if(ticket.loyaltyId != null)
+            inFlightPerAccount.computeIfPresent(
+                ticket.loyaltyId,
+                (id, count) -> count > 1 ? count - 1 : null
+            );
+
+        if(!ticket.bulk) {
+            long elapsed = nanoClock.getAsLong() - ticket.startedAt;
+
+            latency.record(elapsed);
+
+            if(!succeeded || elapsed > targetLatency)
+                limit = Math.max(minLimit, limit * backoffRatio);
+            else if(inFlight * 2 >= limit)
+                limit = Math.min(maxLimit, limit + 1);
+        }
+
+        inFlight--;
+        inFlightGauge.set(inFlight);
+        limitGauge.set((long) limit);
+    }
+}
@@ -0,0 +1,142 @@
+package com.reactivebbq.loyalty;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+// A node-local cache of account balances in front of the shard region.
+// Entries expire after the time to live, and are replaced by the balance an
+// adjustment applied through this node returns and by the change
+// notifications loyalty actors publish across the cluster.
+class BalanceCache {
+    static final String TOPIC = "loyalty-balance-changes";
+
+    private static class CachedBalance {
+        private final LoyaltyActor.LoyaltyBalance balance;
+        private final long expiresAt;
+
+        CachedBalance(LoyaltyActor.LoyaltyBalance balance, long expiresAt) {
+            this.balance = balance;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static class Subscriber extends AbstractActor {
+        static Props create(BalanceCache cache) {
+            return Props.create(Subscriber.class, () -> new Subscriber(cache));
+        }
+
+        private final BalanceCache cache;
+
+        private Subscriber(BalanceCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void preStart() {
+            ActorRef mediator = DistributedPubSub.get(getContext().getSystem())
+                .mediator();
+
+            mediator.tell(
+                new DistributedPubSubMediator.Subscribe(TOPIC, getSelf()),
+                getSelf()
+            );
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                .match(
+                    LoyaltyActor.LoyaltyBalanceChanged.class,
+                    changed -> cache.put(
+                        changed.getLoyaltyId(),
+                        new LoyaltyActor.LoyaltyBalance(
+                            changed.getCurrentTotal(),
+                            changed.getAdjustmentCount()
+                        )
+                    )
+                )
+                .match(
+                    DistributedPubSubMediator.SubscribeAck.class,
+                    ack -> {}
+                )
+                .build();
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final LongSupplier nanoClock;
+    private final Map<LoyaltyId, CachedBalance> entries;
+
+    BalanceCache(int maxEntries, Duration timeToLive) {
+        this(maxEntries, timeToLive, System::nanoTime);
+    }
+
+    BalanceCache(int maxEntries, Duration timeToLive, LongSupplier nanoClock) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive.toNanos();
+        this.nanoClock = nanoClock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LoyaltyId, CachedBalance> eldest) {
+                return size() > BalanceCache.this.maxEntries;
+            }
+        };
+    }
+
+    static Optional<BalanceCache> fromConfig(Config config) {
+        if(!config.getBoolean("enabled"))
+            return Optional.empty();
+
+        return Optional.of(new BalanceCache(
+            config.getInt("max-entries"),
+            config.getDuration("time-to-live")
+        ));
+    }
+
+    synchronized Optional<LoyaltyActor.LoyaltyBalance> get(LoyaltyId loyaltyId) {
+        CachedBalance entry = entries.get(loyaltyId);
+
+        if(entry == null)
+            return Optional.empty();
+
+        if(entry.expiresAt - nanoClock.getAsLong() <= 0) {
+            entries.remove(loyaltyId);
+            return Optional.empty();
+        }
+
+        return Optional.of(entry.balance);
+    }
+
+    // A balance older than the cached one, from a reply that raced a
+    // notification, is ignored.
+    synchronized void put(
+        LoyaltyId loyaltyId,
+        LoyaltyActor.LoyaltyBalance balance
+    ) {
+        CachedBalance current = entries.get(loyaltyId);
+
+        if(current != null &&
+            current.balance.getAdjustmentCount() > balance.getAdjustmentCount())
+            return;
+
+        entries.put(
+            loyaltyId,
+            new CachedBalance(balance, nanoClock.getAsLong() + timeToLive)
+        );
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
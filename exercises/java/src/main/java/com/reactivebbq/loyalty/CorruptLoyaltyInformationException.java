@@ -0,0 +1,9 @@
+package com.reactivebbq.loyalty;
+
+// The stored account was read but can't be decoded. Unlike a failed read,
+// reading it again returns the same contents, so it is not worth retrying.
+class CorruptLoyaltyInformationException extends RuntimeException {
+    CorruptLoyaltyInformationException(String message) {
+        super(message);
+    }
+}
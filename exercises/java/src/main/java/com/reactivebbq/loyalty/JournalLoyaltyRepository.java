@@ -0,0 +1,929 @@
+package com.reactivebbq.loyalty;
+
+import akka.Done;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores every adjustment as a fixed size record appended to a series of
+ * segment files shared by all accounts. Each record holds the account
+ * number (assigned in the accounts catalog) and the balance adjustment. A
+ * record whose account number has the RESET_FLAG bit set marks a reset of
+ * that account's history instead, so no adjustment value is mistaken for
+ * one.
+ *
+ * Updates are group committed: a single committer thread collects the
+ * updates that arrive within a batch window, writes them with one
+ * sequential write and one fsync, and then completes all of them together.
+ *
+ * Once an account has accumulated snapshotInterval records since its last
+ * snapshot, the balance and record count are appended to the snapshot log
+ * together with the journal position they cover. Reading an account then
+ * only replays the records written after its latest snapshot. The records a
+ * snapshot covers stay in the segments and in the index, so the compacted
+ * part of the history can still be read on request.
+ */
+class JournalLoyaltyRepository implements LoyaltyRepository, Closeable {
+    static final int RECORD_SIZE = 8;
+    static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    static final Duration DEFAULT_MAX_BATCH_DELAY = Duration.ofMillis(2);
+    static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+    static final int MAX_MAPPED_SEGMENTS = 16;
+
+    private static final int RESET_FLAG = Integer.MIN_VALUE;
+    private static final int SNAPSHOT_SIZE = 3 * Integer.BYTES + Long.BYTES;
+    private static final String ACCOUNTS_FILE = "accounts";
+    private static final String SNAPSHOTS_FILE = "snapshots";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static class AccountIndex {
+        private final int accountNumber;
+        private long[] positions = new long[4];
+        private int size = 0;
+        private int lastAdjustment = 0;
+        private int total = 0;
+        private int snapshotCount = 0;
+        private int snapshotTotal = 0;
+        private long snapshotPosition = -1;
+
+        AccountIndex(int accountNumber) {
+            this.accountNumber = accountNumber;
+        }
+
+        int count() {
+            return size;
+        }
+
+        int uncompacted() {
+            return size - snapshotCount;
+        }
+
+        // Records a recovered snapshot covers are indexed again on replay,
+        // but their adjustments are already part of its total.
+        void add(long position, int adjustment) {
+            if(size == positions.length)
+                positions = Arrays.copyOf(positions, size * 2);
+
+            positions[size++] = position;
+            lastAdjustment = adjustment;
+
+            if(position > snapshotPosition)
+                total += adjustment;
+        }
+
+        void reset(long position) {
+            positions = new long[4];
+            size = 0;
+            lastAdjustment = 0;
+
+            if(position > snapshotPosition) {
+                total = 0;
+                snapshotCount = 0;
+                snapshotTotal = 0;
+                snapshotPosition = -1;
+            }
+        }
+
+        void snapshot(int count, int total, long position) {
+            this.total = total;
+            snapshotCount = count;
+            snapshotTotal = total;
+            snapshotPosition = position;
+        }
+    }
+
+    private static class StagedAccount {
+        private final AccountIndex account;
+        private long resetPosition = -1;
+        private long[] positions = new long[4];
+        private int[] adjustments = new int[4];
+        private int count = 0;
+
+        StagedAccount(AccountIndex account) {
+            this.account = account;
+        }
+
+        int size() {
+            return resetPosition >= 0 ? count : account.count() + count;
+        }
+
+        int lastAdjustment() {
+            if(count > 0)
+                return adjustments[count - 1];
+            else
+                return resetPosition >= 0 ? 0 : account.lastAdjustment;
+        }
+
+        boolean isExtendedBy(LoyaltyInformation history) {
+            int size = size();
+
+            if(history.getAdjustmentCount() < size)
+                return false;
+            else if(size == 0)
+                return true;
+            else if(size - 1 < history.getHistoryOffset())
+                return true;
+            else
+                return history.getBalanceAdjustment(size - 1) ==
+                    lastAdjustment();
+        }
+
+        void add(long position, int adjustment) {
+            if(count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                adjustments = Arrays.copyOf(adjustments, count * 2);
+            }
+
+            positions[count] = position;
+            adjustments[count] = adjustment;
+            count++;
+        }
+
+        void reset(long position) {
+            resetPosition = position;
+            count = 0;
+        }
+
+        void applyTo(AccountIndex index) {
+            if(resetPosition >= 0)
+                index.reset(resetPosition);
+
+            for(int i = 0; i < count; i++) {
+                index.add(positions[i], adjustments[i]);
+            }
+        }
+    }
+
+    private static class PendingUpdate {
+        private final LoyaltyId loyaltyId;
+        private final LoyaltyInformation loyaltyInformation;
+        private final CompletableFuture<Done> result = new CompletableFuture<>();
+
+        PendingUpdate(LoyaltyId loyaltyId, LoyaltyInformation loyaltyInformation) {
+            this.loyaltyId = loyaltyId;
+            this.loyaltyInformation = loyaltyInformation;
+        }
+    }
+
+    private final Path rootPath;
+    private final long segmentSize;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final int snapshotInterval;
+    private final ReadMode readMode;
+    private final Executor executor;
+
+    private final Map<LoyaltyId, AccountIndex> index = new HashMap<>();
+    private final List<LoyaltyId> accounts = new ArrayList<>();
+    private final Map<Long, FileChannel> segments = new HashMap<>();
+    // A segment that falls out of this cache is unmapped once the buffer
+    // is collected, so only the recently read segments stay mapped.
+    private final Map<Long, MappedByteBuffer> sealedSegments =
+        new LinkedHashMap<>(MAX_MAPPED_SEGMENTS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Long, MappedByteBuffer> eldest
+            ) {
+                return size() > MAX_MAPPED_SEGMENTS;
+            }
+        };
+    private final FileChannel accountsFile;
+    private final FileChannel snapshotsFile;
+    private long writePosition = 0;
+
+    private final BlockingQueue<PendingUpdate> pending = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private volatile boolean running = true;
+    // Set when a failed batch could not be undone, after which the files
+    // no longer match the index and nothing more is written.
+    private volatile IOException unrecoverable;
+    // Written only by the committer, for tests to check the batching.
+    private volatile long commits = 0;
+    private volatile long forces = 0;
+
+    JournalLoyaltyRepository(Path rootPath, Executor executor)
+        throws IOException {
+
+        this(rootPath, DEFAULT_SEGMENT_SIZE, executor);
+    }
+
+    JournalLoyaltyRepository(Path rootPath, long segmentSize, Executor executor)
+        throws IOException {
+
+        this(
+            rootPath,
+            segmentSize,
+            DEFAULT_MAX_BATCH_SIZE,
+            DEFAULT_MAX_BATCH_DELAY,
+            DEFAULT_SNAPSHOT_INTERVAL,
+            ReadMode.STANDARD,
+            executor
+        );
+    }
+
+    JournalLoyaltyRepository(
+        Path rootPath,
+        long segmentSize,
+        int maxBatchSize,
+        Duration maxBatchDelay,
+        int snapshotInterval,
+        ReadMode readMode,
+        Executor executor
+    ) throws IOException {
+
+        if(segmentSize < RECORD_SIZE)
+            throw new IllegalArgumentException(
+                "Segment size must hold at least one record: " + segmentSize
+            );
+
+        if(maxBatchSize < 1)
+            throw new IllegalArgumentException(
+                "Batch size must be at least one: " + maxBatchSize
+            );
+
+        if(snapshotInterval < 1)
+            throw new IllegalArgumentException(
+                "Snapshot interval must be at least one: " + snapshotInterval
+            );
+
+        if(readMode == ReadMode.MAPPED && segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(
+                "Mapped segments must be smaller than 2 GiB: " + segmentSize
+            );
+
+        this.rootPath = rootPath;
+        this.segmentSize = segmentSize - (segmentSize % RECORD_SIZE);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = maxBatchDelay.toNanos();
+        this.snapshotInterval = snapshotInterval;
+        this.readMode = readMode;
+        this.executor = executor;
+
+        Files.createDirectories(rootPath);
+
+        accountsFile = FileChannel.open(
+            rootPath.resolve(ACCOUNTS_FILE),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+
+        snapshotsFile = FileChannel.open(
+            rootPath.resolve(SNAPSHOTS_FILE),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+
+        recoverAccounts();
+        recoverSnapshots();
+        recoverSegments();
+
+        committer = new Thread(this::commitLoop, "loyalty-journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @Override
+    public CompletableFuture<Done> updateLoyalty(
+        LoyaltyId loyaltyId,
+        LoyaltyInformation loyaltyInformation
+    ) {
+        PendingUpdate update = new PendingUpdate(loyaltyId, loyaltyInformation);
+
+        pending.add(update);
+
+        // close() may have drained the queue between a check of running and
+        // the add, so whichever of the two takes the update back fails it.
+        if(!running && pending.remove(update))
+            update.result.completeExceptionally(
+                new IllegalStateException("The journal has been closed")
+            );
+
+        return update.result;
+    }
+
+    @Override
+    public CompletableFuture<Optional<LoyaltyInformation>> findLoyalty(
+        LoyaltyId loyaltyId
+    ) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(loyaltyId);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    long getCommits() {
+        return commits;
+    }
+
+    long getForces() {
+        return forces;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+
+        try {
+            committer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        PendingUpdate update;
+
+        while((update = pending.poll()) != null) {
+            update.result.completeExceptionally(
+                new IllegalStateException("The journal has been closed")
+            );
+        }
+
+        synchronized (this) {
+            for(FileChannel segment : segments.values()) {
+                segment.close();
+            }
+
+            segments.clear();
+            sealedSegments.clear();
+            accountsFile.close();
+            snapshotsFile.close();
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingUpdate> batch = new ArrayList<>(maxBatchSize);
+
+        while(running || !pending.isEmpty()) {
+            try {
+                PendingUpdate first = pending.poll(100, TimeUnit.MILLISECONDS);
+
+                if(first == null)
+                    continue;
+
+                batch.add(first);
+                pending.drainTo(batch, maxBatchSize - batch.size());
+
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+
+                while(batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if(remaining <= 0)
+                        break;
+
+                    PendingUpdate next =
+                        pending.poll(remaining, TimeUnit.NANOSECONDS);
+
+                    if(next == null)
+                        break;
+
+                    batch.add(next);
+                    pending.drainTo(batch, maxBatchSize - batch.size());
+                }
+
+                commit(batch);
+            } catch (InterruptedException ex) {
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingUpdate> batch) {
+        if(unrecoverable != null) {
+            for(PendingUpdate update : batch) {
+                update.result.completeExceptionally(new IllegalStateException(
+                    "The journal was closed after a failed write",
+                    unrecoverable
+                ));
+            }
+
+            return;
+        }
+
+        Map<AccountIndex, StagedAccount> staged = new IdentityHashMap<>();
+        Map<LoyaltyId, AccountIndex> registered = new LinkedHashMap<>();
+        List<PendingUpdate> accepted = new ArrayList<>(batch.size());
+        ByteBuffer records = ByteBuffer.allocate(
+            batch.size() * 2 * RECORD_SIZE
+        );
+        long position = writePosition;
+
+        for(PendingUpdate update : batch) {
+            AccountIndex account = index.get(update.loyaltyId);
+
+            if(account == null)
+                account = registered.computeIfAbsent(update.loyaltyId, id ->
+                    new AccountIndex(accounts.size() + registered.size())
+                );
+
+            StagedAccount stage =
+                staged.computeIfAbsent(account, StagedAccount::new);
+
+            int from = stage.size();
+
+            if(update.loyaltyInformation.getAdjustmentCount() < from) {
+                accepted.add(update);
+                continue;
+            }
+
+            if(!stage.isExtendedBy(update.loyaltyInformation)) {
+                if(update.loyaltyInformation.getHistoryOffset() > 0) {
+                    update.result.completeExceptionally(
+                        new IllegalArgumentException(
+                            "Unable to replace the compacted history of " +
+                                update.loyaltyId.getValue()
+                        )
+                    );
+                    continue;
+                }
+
+                records = putRecord(
+                    records,
+                    account.accountNumber | RESET_FLAG,
+                    0
+                );
+                stage.reset(position);
+                position += RECORD_SIZE;
+                from = 0;
+            }
+
+            int count = update.loyaltyInformation.getAdjustmentCount();
+
+            for(int i = from; i < count; i++) {
+                int adjustment = update.loyaltyInformation.getBalanceAdjustment(i);
+                records = putRecord(records, account.accountNumber, adjustment);
+                stage.add(position, adjustment);
+                position += RECORD_SIZE;
+            }
+
+            accepted.add(update);
+        }
+
+        records.flip();
+
+        long accountsSize = 0;
+
+        try {
+            accountsSize = accountsFile.size();
+
+            if(!registered.isEmpty())
+                writeAccounts(registered.keySet());
+
+            write(records);
+
+            synchronized (this) {
+                for(Map.Entry<LoyaltyId, AccountIndex> entry :
+                    registered.entrySet()) {
+
+                    accounts.add(entry.getKey());
+                    index.put(entry.getKey(), entry.getValue());
+                }
+
+                for(StagedAccount stage : staged.values()) {
+                    stage.applyTo(stage.account);
+                }
+
+                writePosition = position;
+            }
+
+            commits++;
+
+            for(PendingUpdate update : accepted) {
+                update.result.complete(Done.getInstance());
+            }
+        } catch (IOException ex) {
+            try {
+                rollBack(accountsSize);
+            } catch (IOException rollBackFailure) {
+                ex.addSuppressed(rollBackFailure);
+                unrecoverable = ex;
+                running = false;
+            }
+
+            for(PendingUpdate update : accepted) {
+                update.result.completeExceptionally(ex);
+            }
+
+            return;
+        }
+
+        snapshot(staged.keySet());
+    }
+
+    // Undoes whatever part of a failed batch reached the files. Otherwise a
+    // shorter batch written next would only overwrite part of it, and
+    // recovery would replay records whose updates were reported as failed,
+    // under account numbers that may since belong to other accounts.
+    private void rollBack(long accountsSize) throws IOException {
+        accountsFile.truncate(accountsSize);
+        accountsFile.force(false);
+
+        long activeSegment = writePosition / segmentSize;
+        FileChannel active = segment(activeSegment);
+        active.truncate(writePosition % segmentSize);
+        active.force(false);
+
+        for(long segmentNumber = activeSegment + 1;
+            Files.exists(segmentPath(segmentNumber));
+            segmentNumber++) {
+
+            FileChannel created;
+
+            synchronized (this) {
+                created = segments.remove(segmentNumber);
+                sealedSegments.remove(segmentNumber);
+            }
+
+            if(created != null)
+                created.close();
+
+            Files.delete(segmentPath(segmentNumber));
+
+            try(FileChannel directory =
+                FileChannel.open(rootPath, StandardOpenOption.READ)) {
+
+                directory.force(true);
+            }
+        }
+    }
+
+    private void snapshot(Set<AccountIndex> candidates) {
+        List<AccountIndex> due = new ArrayList<>();
+
+        for(AccountIndex account : candidates) {
+            if(account.uncompacted() >= snapshotInterval)
+                due.add(account);
+        }
+
+        if(due.isEmpty())
+            return;
+
+        ByteBuffer entries = ByteBuffer.allocate(due.size() * SNAPSHOT_SIZE);
+        long[] positions = new long[due.size()];
+
+        for(int i = 0; i < due.size(); i++) {
+            AccountIndex account = due.get(i);
+            positions[i] = account.positions[account.size - 1];
+
+            entries
+                .putInt(account.accountNumber)
+                .putInt(account.count())
+                .putInt(account.total)
+                .putLong(positions[i]);
+        }
+
+        entries.flip();
+
+        try {
+            long offset = snapshotsFile.size();
+
+            while(entries.hasRemaining()) {
+                offset += snapshotsFile.write(entries, offset);
+            }
+
+            snapshotsFile.force(false);
+        } catch (IOException ex) {
+            // The records are already durable, the snapshot is retried on
+            // the next write to these accounts.
+            return;
+        }
+
+        synchronized (this) {
+            for(int i = 0; i < due.size(); i++) {
+                AccountIndex account = due.get(i);
+                account.snapshot(account.count(), account.total, positions[i]);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<int[]> findBalanceAdjustments(
+        LoyaltyId loyaltyId,
+        int from,
+        int to
+    ) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(loyaltyId, from, to);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    private synchronized Optional<LoyaltyInformation> read(
+        LoyaltyId loyaltyId
+    ) throws IOException {
+
+        AccountIndex account = index.get(loyaltyId);
+
+        if(account == null)
+            return Optional.empty();
+
+        int[] adjustments =
+            readAdjustments(account, account.snapshotCount, account.size);
+
+        return Optional.of(LoyaltyInformation.fromSnapshot(
+            account.snapshotCount,
+            account.snapshotTotal,
+            adjustments,
+            adjustments.length
+        ));
+    }
+
+    private synchronized int[] read(LoyaltyId loyaltyId, int from, int to)
+        throws IOException {
+
+        AccountIndex account = index.get(loyaltyId);
+        int size = account == null ? 0 : account.size;
+
+        if(from < 0 || from > to || to > size)
+            throw new IndexOutOfBoundsException(
+                "Adjustments " + from + " to " + to + " of " +
+                    loyaltyId.getValue() + " are not in the journal"
+            );
+
+        return readAdjustments(account, from, to);
+    }
+
+    private int[] readAdjustments(AccountIndex account, int from, int to)
+        throws IOException {
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        int[] adjustments = new int[to - from];
+        long activeSegment = writePosition / segmentSize;
+
+        for(int i = 0; i < adjustments.length; i++) {
+            long position = account.positions[from + i];
+            long segmentNumber = position / segmentSize;
+            long offset = position % segmentSize;
+
+            if(readMode == ReadMode.MAPPED && segmentNumber < activeSegment) {
+                adjustments[i] = sealedSegment(segmentNumber)
+                    .getInt((int) offset + Integer.BYTES);
+            } else {
+                record.clear();
+                segment(segmentNumber).read(record, offset);
+                adjustments[i] = record.getInt(Integer.BYTES);
+            }
+        }
+
+        return adjustments;
+    }
+
+    private void writeAccounts(Set<LoyaltyId> loyaltyIds) throws IOException {
+        List<byte[]> values = new ArrayList<>(loyaltyIds.size());
+        int length = 0;
+
+        for(LoyaltyId loyaltyId : loyaltyIds) {
+            byte[] value = loyaltyId.getValue().getBytes(StandardCharsets.UTF_8);
+            values.add(value);
+            length += Integer.BYTES + value.length;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(length);
+
+        for(byte[] value : values) {
+            entries.putInt(value.length).put(value);
+        }
+
+        entries.flip();
+
+        long offset = accountsFile.size();
+
+        while(entries.hasRemaining()) {
+            offset += accountsFile.write(entries, offset);
+        }
+
+        accountsFile.force(false);
+    }
+
+    // Most updates add one record, so a batch buffer starts at about two
+    // per update and only grows for the few that add more.
+    private static ByteBuffer putRecord(
+        ByteBuffer records,
+        int accountNumber,
+        int adjustment
+    ) {
+        if(records.remaining() < RECORD_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                Math.max(RECORD_SIZE, records.capacity() * 2)
+            );
+
+            records.flip();
+            records = grown.put(records);
+        }
+
+        return records.putInt(accountNumber).putInt(adjustment);
+    }
+
+    private void write(ByteBuffer records) throws IOException {
+        Set<FileChannel> written = new LinkedHashSet<>();
+        long position = writePosition;
+
+        while(records.hasRemaining()) {
+            FileChannel segment = segment(position / segmentSize);
+            long offset = position % segmentSize;
+            int chunk = (int) Math.min(
+                records.remaining(),
+                segmentSize - offset
+            );
+
+            ByteBuffer slice = records.slice();
+            slice.limit(chunk);
+
+            while(slice.hasRemaining()) {
+                offset += segment.write(slice, offset);
+            }
+
+            records.position(records.position() + chunk);
+            position += chunk;
+            written.add(segment);
+        }
+
+        for(FileChannel segment : written) {
+            segment.force(false);
+            forces++;
+        }
+    }
+
+    private synchronized FileChannel segment(long segmentNumber)
+        throws IOException {
+
+        FileChannel segment = segments.get(segmentNumber);
+
+        if(segment == null) {
+            segment = FileChannel.open(
+                segmentPath(segmentNumber),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            segments.put(segmentNumber, segment);
+        }
+
+        return segment;
+    }
+
+    private MappedByteBuffer sealedSegment(long segmentNumber)
+        throws IOException {
+
+        MappedByteBuffer sealed = sealedSegments.get(segmentNumber);
+
+        if(sealed == null) {
+            sealed = segment(segmentNumber).map(
+                FileChannel.MapMode.READ_ONLY,
+                0,
+                segmentSize
+            );
+            sealedSegments.put(segmentNumber, sealed);
+        }
+
+        return sealed;
+    }
+
+    private Path segmentPath(long segmentNumber) {
+        return rootPath.resolve(
+            String.format("%010d%s", segmentNumber, SEGMENT_SUFFIX)
+        );
+    }
+
+    private void recoverAccounts() throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate((int) accountsFile.size());
+
+        while(contents.hasRemaining()) {
+            if(accountsFile.read(contents, contents.position()) < 0)
+                break;
+        }
+
+        contents.flip();
+
+        while(contents.remaining() >= Integer.BYTES) {
+            int length = contents.getInt(contents.position());
+
+            if(contents.remaining() < Integer.BYTES + length)
+                break;
+
+            byte[] value = new byte[length];
+            contents.position(contents.position() + Integer.BYTES);
+            contents.get(value);
+
+            LoyaltyId loyaltyId =
+                new LoyaltyId(new String(value, StandardCharsets.UTF_8));
+            index.put(loyaltyId, new AccountIndex(accounts.size()));
+            accounts.add(loyaltyId);
+        }
+
+        // Drop any entry that was only partially written.
+        accountsFile.truncate(contents.position());
+    }
+
+    private void recoverSnapshots() throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        long end = snapshotsFile.size() - (snapshotsFile.size() % SNAPSHOT_SIZE);
+
+        for(long offset = 0; offset < end; offset += SNAPSHOT_SIZE) {
+            entry.clear();
+
+            while(entry.hasRemaining()) {
+                if(snapshotsFile.read(entry, offset + entry.position()) < 0)
+                    break;
+            }
+
+            int accountNumber = entry.getInt(0);
+
+            if(accountNumber < 0 || accountNumber >= accounts.size())
+                continue;
+
+            index.get(accounts.get(accountNumber)).snapshot(
+                entry.getInt(Integer.BYTES),
+                entry.getInt(2 * Integer.BYTES),
+                entry.getLong(3 * Integer.BYTES)
+            );
+        }
+
+        // Drop any entry that was only partially written.
+        snapshotsFile.truncate(end);
+    }
+
+    private void recoverSegments() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * RECORD_SIZE * 1024);
+
+        for(long segmentNumber = 0;
+            Files.exists(segmentPath(segmentNumber));
+            segmentNumber++) {
+
+            FileChannel segment = segment(segmentNumber);
+            long offset = 0;
+            long end = segment.size() - (segment.size() % RECORD_SIZE);
+
+            while(offset < end) {
+                buffer.clear();
+                int read = segment.read(buffer, offset);
+
+                if(read <= 0)
+                    break;
+
+                buffer.flip();
+
+                while(buffer.remaining() >= RECORD_SIZE && offset < end) {
+                    replay(
+                        segmentNumber * segmentSize + offset,
+                        buffer.getInt(),
+                        buffer.getInt()
+                    );
+                    offset += RECORD_SIZE;
+                }
+            }
+
+            writePosition = segmentNumber * segmentSize + offset;
+        }
+    }
+
+    private void replay(long position, int accountNumber, int adjustment) {
+        boolean reset = (accountNumber & RESET_FLAG) != 0;
+        accountNumber &= ~RESET_FLAG;
+
+        if(accountNumber >= accounts.size())
+            return;
+
+        AccountIndex account = index.get(accounts.get(accountNumber));
+
+        if(reset)
+            account.reset(position);
+        else
+            account.add(position, adjustment);
+    }
+}
@@ -1,14 +1,30 @@
 package com.reactivebbq.loyalty;
 
 import akka.actor.AbstractActorWithStash;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Status;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import com.fasterxml.jackson.annotation.JsonCreator;
 
 import static akka.pattern.Patterns.pipe;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 class LoyaltyActor extends AbstractActorWithStash {
     private final LoggingAdapter log = Logging.getLogger(
@@ -19,6 +35,10 @@ class LoyaltyActor extends AbstractActorWithStash {
     interface Command extends SerializableMessage {}
     interface Event extends SerializableMessage {}
 
+    // The reason given when the account could not be loaded in time. The
+    // same request may succeed if it is retried later.
+    static final String ACCOUNT_UNAVAILABLE = "Account Unavailable, Retry Later";
+
     static class ApplyLoyaltyAdjustment implements Command {
         private final LoyaltyAdjustment adjustment;
 
@@ -32,24 +52,111 @@ class LoyaltyActor extends AbstractActorWithStash {
         }
     }
 
+    // Applied one after the other and persisted with a single write.
+    static class ApplyLoyaltyAdjustments implements Command {
+        private final List<LoyaltyAdjustment> adjustments;
+
+        List<LoyaltyAdjustment> getAdjustments() {
+            return adjustments;
+        }
+
+        @JsonCreator
+        ApplyLoyaltyAdjustments(List<LoyaltyAdjustment> adjustments) {
+            this.adjustments = adjustments;
+        }
+    }
+
     static class GetLoyaltyInformation implements Command {}
 
+    // A command whose caller stops waiting for the reply once the time
+    // left runs out. Clocks on different nodes can't be compared, so the
+    // deadline is a System.nanoTime reading on the node that holds the
+    // command and only the time left is sent to another node.
+    static class WithDeadline implements Command {
+        private final Command command;
+        private final long deadline;
+
+        Command getCommand() {
+            return command;
+        }
+
+        Duration getTimeLeft() {
+            return Duration.ofNanos(deadline - System.nanoTime());
+        }
+
+        WithDeadline(Command command, Duration timeLeft) {
+            this.command = command;
+            this.deadline = System.nanoTime() + timeLeft.toNanos();
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - deadline >= 0;
+        }
+    }
+
+    static class GetLoyaltyBalance implements Command {}
+
+    // Pages through the history from the most recent adjustment back.
+    static class GetLoyaltyHistory implements Command {
+        private final int offset;
+        private final int limit;
+
+        int getOffset() {
+            return offset;
+        }
+
+        int getLimit() {
+            return limit;
+        }
+
+        @JsonCreator
+        GetLoyaltyHistory(int offset, int limit) {
+            this.offset = offset;
+            this.limit = limit;
+        }
+    }
+
+    // Sent back by the shard, or the supervisor, once it has agreed to
+    // passivate the actor.
+    static class Stop implements Command {}
+
+    // Carries the balance right after the adjustment, so a node that
+    // caches balances can replace its entry instead of dropping it.
     static class LoyaltyAdjustmentApplied implements Event {
         private final LoyaltyAdjustment adjustment;
+        private final int currentTotal;
+        private final int adjustmentCount;
 
         LoyaltyAdjustment getAdjustment() {
             return adjustment;
         }
 
+        int getCurrentTotal() {
+            return currentTotal;
+        }
+
+        int getAdjustmentCount() {
+            return adjustmentCount;
+        }
+
         @JsonCreator
-        LoyaltyAdjustmentApplied(LoyaltyAdjustment adjustment) {
+        LoyaltyAdjustmentApplied(
+            LoyaltyAdjustment adjustment,
+            int currentTotal,
+            int adjustmentCount
+        ) {
             this.adjustment = adjustment;
+            this.currentTotal = currentTotal;
+            this.adjustmentCount = adjustmentCount;
         }
     }
 
+    // A retryable rejection was not about the adjustment itself, so the
+    // same adjustment may be applied if it is sent again later.
     static class LoyaltyAdjustmentRejected implements Event {
         private final LoyaltyAdjustment adjustment;
         private final String reason;
+        private final boolean retryable;
 
         LoyaltyAdjustment getAdjustment() {
             return adjustment;
@@ -59,9 +166,184 @@ class LoyaltyActor extends AbstractActorWithStash {
             return reason;
         }
 
+        boolean isRetryable() {
+            return retryable;
+        }
+
         LoyaltyAdjustmentRejected(LoyaltyAdjustment adjustment, String reason) {
+            this(adjustment, reason, false);
+        }
+
+        LoyaltyAdjustmentRejected(
+            LoyaltyAdjustment adjustment,
+            String reason,
+            boolean retryable
+        ) {
             this.adjustment = adjustment;
             this.reason = reason;
+            this.retryable = retryable;
+        }
+    }
+
+    // The reply to a query the actor could not answer because its account
+    // is not loaded. The same query may succeed if it is retried later.
+    static class AccountUnavailable implements SerializableMessage {}
+
+    // Holds one LoyaltyAdjustmentApplied or LoyaltyAdjustmentRejected per
+    // adjustment, in the order they were submitted.
+    static class LoyaltyAdjustmentsProcessed implements Event {
+        private final List<Event> results;
+
+        List<Event> getResults() {
+            return results;
+        }
+
+        @JsonCreator
+        LoyaltyAdjustmentsProcessed(List<Event> results) {
+            this.results = results;
+        }
+    }
+
+    static class LoyaltyBalance implements SerializableMessage {
+        private final int currentTotal;
+        private final int adjustmentCount;
+
+        int getCurrentTotal() {
+            return currentTotal;
+        }
+
+        int getAdjustmentCount() {
+            return adjustmentCount;
+        }
+
+        @JsonCreator
+        LoyaltyBalance(int currentTotal, int adjustmentCount) {
+            this.currentTotal = currentTotal;
+            this.adjustmentCount = adjustmentCount;
+        }
+    }
+
+    // The balance adjustments of one page, most recent first.
+    static class LoyaltyHistory implements SerializableMessage {
+        private final int currentTotal;
+        private final int adjustmentCount;
+        private final int offset;
+        private final int[] balanceAdjustments;
+
+        int getCurrentTotal() {
+            return currentTotal;
+        }
+
+        int getAdjustmentCount() {
+            return adjustmentCount;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        int[] getBalanceAdjustments() {
+            return balanceAdjustments;
+        }
+
+        @JsonCreator
+        LoyaltyHistory(
+            int currentTotal,
+            int adjustmentCount,
+            int offset,
+            int[] balanceAdjustments
+        ) {
+            this.currentTotal = currentTotal;
+            this.adjustmentCount = adjustmentCount;
+            this.offset = offset;
+            this.balanceAdjustments = balanceAdjustments;
+        }
+    }
+
+    // Published across the cluster after a write, for the balance caches.
+    static class LoyaltyBalanceChanged implements SerializableMessage {
+        private final LoyaltyId loyaltyId;
+        private final int currentTotal;
+        private final int adjustmentCount;
+
+        LoyaltyId getLoyaltyId() {
+            return loyaltyId;
+        }
+
+        int getCurrentTotal() {
+            return currentTotal;
+        }
+
+        int getAdjustmentCount() {
+            return adjustmentCount;
+        }
+
+        @JsonCreator
+        LoyaltyBalanceChanged(
+            LoyaltyId loyaltyId,
+            int currentTotal,
+            int adjustmentCount
+        ) {
+            this.loyaltyId = loyaltyId;
+            this.currentTotal = currentTotal;
+            this.adjustmentCount = adjustmentCount;
+        }
+    }
+
+    private static class RecoveryTimedOut {}
+
+    private static class RetryLoad {}
+
+    private static class CompactedHistoryRead {
+        private final PendingReply pending;
+        private final Object reply;
+
+        CompactedHistoryRead(PendingReply pending, Object reply) {
+            this.pending = pending;
+            this.reply = reply;
+        }
+    }
+
+    private static class WriteCompleted {
+        private final long sequenceNr;
+        private final Throwable failure;
+
+        WriteCompleted(long sequenceNr, Throwable failure) {
+            this.sequenceNr = sequenceNr;
+            this.failure = failure;
+        }
+    }
+
+    // Replies are queued in the order the commands arrived and released
+    // from the head, so a write that completes early waits for the writes
+    // issued before it.
+    private static class PendingReply {
+        private final long sequenceNr;
+        private final ActorRef replyTo;
+        private final Event acknowledgement;
+        private Object reply;
+
+        PendingReply(ActorRef replyTo, Object reply) {
+            this(0, replyTo, null);
+            this.reply = reply;
+        }
+
+        PendingReply(
+            long sequenceNr,
+            ActorRef replyTo,
+            Event acknowledgement
+        ) {
+            this.sequenceNr = sequenceNr;
+            this.replyTo = replyTo;
+            this.acknowledgement = acknowledgement;
+        }
+
+        boolean isWrite() {
+            return acknowledgement != null;
+        }
+
+        boolean isCompleted() {
+            return reply != null;
         }
     }
 
@@ -74,8 +356,49 @@ class LoyaltyActor extends AbstractActorWithStash {
 
     private final LoyaltyId loyaltyId = new LoyaltyId(getSelf().path().name());
     private final LoyaltyRepository loyaltyRepository;
+    private final int maxWritesInFlight = getContext().getSystem()
+        .settings()
+        .config()
+        .getInt("loyalty.actor.max-writes-in-flight");
+    private final int maxCoalescedAdjustments = getContext().getSystem()
+        .settings()
+        .config()
+        .getInt("loyalty.actor.max-coalesced-adjustments");
+    private final boolean publishBalanceChanges = getContext().getSystem()
+        .settings()
+        .config()
+        .getBoolean("loyalty.balance-cache.enabled") &&
+        getContext().getSystem()
+            .settings()
+            .config()
+            .getBoolean("loyalty.balance-cache.cluster-notifications");
+    private final Optional<ReplicatedBalances> replicatedBalances =
+        ReplicatedBalances.fromConfig(getContext().getSystem());
+    private final int stashCapacity = getContext().getSystem()
+        .settings()
+        .config()
+        .getInt("loyalty.actor.stash-capacity");
+    private final Duration recoveryTimeout = getContext().getSystem()
+        .settings()
+        .config()
+        .getDuration("loyalty.actor.recovery-timeout");
+    private final Duration maxLoadBackoff = getContext().getSystem()
+        .settings()
+        .config()
+        .getDuration("loyalty.actor.load-retry.max-backoff");
+    private final ArrayDeque<PendingReply> pendingReplies = new ArrayDeque<>();
     private LoyaltyInformation loyaltyInformation = LoyaltyInformation.empty;
-
+    private long lastSequenceNr = 0;
+    private int writesInFlight = 0;
+    private int coalescedAdjustments = 0;
+    private boolean stopping = false;
+    private int commandsStashedWhileInitializing = 0;
+    private Cancellable recoveryTimer;
+    private Cancellable loadRetryTimer;
+    private Duration loadBackoff = getContext().getSystem()
+        .settings()
+        .config()
+        .getDuration("loyalty.actor.load-retry.min-backoff");
 
     private LoyaltyActor(LoyaltyRepository loyaltyRepository) {
         this.loyaltyRepository = loyaltyRepository;
@@ -85,13 +408,45 @@ class LoyaltyActor extends AbstractActorWithStash {
     public void preStart() throws Exception {
         super.preStart();
 
+        load();
+
+        recoveryTimer = getContext().getSystem().scheduler().scheduleOnce(
+            recoveryTimeout,
+            getSelf(),
+            new RecoveryTimedOut(),
+            getContext().getDispatcher(),
+            getSelf()
+        );
+
+        getContext().setReceiveTimeout(
+            getContext().getSystem()
+                .settings()
+                .config()
+                .getDuration("loyalty.passivation.idle-timeout")
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        recoveryTimer.cancel();
+
+        if(loadRetryTimer != null)
+            loadRetryTimer.cancel();
+
+        super.postStop();
+    }
+
+    // A failed read leaves the actor initializing and is tried again, so
+    // an account that exists is never mistaken for a new one. An account
+    // that was read but is corrupt would only read the same way again.
+    private void load() {
         CompletableFuture<LoyaltyInformation> info = loyaltyRepository
             .findLoyalty(loyaltyId)
-            .handle((loyaltyInfo, ex) -> {
-                if(loyaltyInfo != null) {
+            .thenApply(loyaltyInfo -> {
+                if(loyaltyInfo.isPresent()) {
                     log.info("Loyalty Information Loaded For " +
                         loyaltyId.getValue());
-                    return loyaltyInfo;
+                    return loyaltyInfo.get();
                 } else {
                     log.info("Creating New Loyalty Account For " +
                         loyaltyId.getValue());
@@ -112,42 +467,230 @@ class LoyaltyActor extends AbstractActorWithStash {
             .match(
                 LoyaltyInformation.class,
                 loyaltyInfo -> {
+                    recoveryTimer.cancel();
                     loyaltyInformation = loyaltyInfo;
                     getContext().become(running());
                     unstashAll();
                 }
             )
+            .match(
+                Status.Failure.class,
+                this::handle
+            )
+            .match(
+                RetryLoad.class,
+                (retry) -> load()
+            )
+            .match(
+                RecoveryTimedOut.class,
+                this::handle
+            )
+            .match(
+                ReceiveTimeout.class,
+                ignored -> {}
+            )
+            .match(
+                WithDeadline.class,
+                WithDeadline::isExpired,
+                this::drop
+            )
+            .match(
+                Stop.class,
+                (stop) -> stash()
+            )
+            .match(
+                Command.class,
+                this::stashOrReject
+            )
             .matchAny((msg) -> stash())
             .build();
     }
 
+    // The account could not be loaded in time. Whatever is waiting is
+    // turned away until the shard stops this instance, and the next
+    // command starts a fresh one that tries the load again.
+    private Receive unavailable() {
+        return receiveBuilder()
+            .match(
+                Stop.class,
+                (stop) -> getContext().stop(getSelf())
+            )
+            .match(
+                WithDeadline.class,
+                WithDeadline::isExpired,
+                this::drop
+            )
+            .match(
+                Command.class,
+                this::reject
+            )
+            .matchAny((msg) -> {})
+            .build();
+    }
+
+    // The stored account can't be decoded. Commands fail, without a hint to
+    // retry, until the shard stops this instance, and the next command
+    // starts a fresh one that reads the account again in case it was
+    // repaired.
+    private Receive corrupt(Throwable cause) {
+        return receiveBuilder()
+            .match(
+                Stop.class,
+                (stop) -> getContext().stop(getSelf())
+            )
+            .match(
+                WithDeadline.class,
+                WithDeadline::isExpired,
+                this::drop
+            )
+            .match(
+                Command.class,
+                (cmd) -> reply(new Status.Failure(cause))
+            )
+            .matchAny((msg) -> {})
+            .build();
+    }
+
     private Receive running() {
         return receiveBuilder()
+            .match(
+                WithDeadline.class,
+                WithDeadline::isExpired,
+                this::drop
+            )
+            .match(
+                WithDeadline.class,
+                this::handle
+            )
             .match(
                 ApplyLoyaltyAdjustment.class,
                 this::handle
             )
+            .match(
+                ApplyLoyaltyAdjustments.class,
+                this::handle
+            )
             .match(
                 GetLoyaltyInformation.class,
                 this::handle
             )
+            .match(
+                GetLoyaltyBalance.class,
+                this::handle
+            )
+            .match(
+                GetLoyaltyHistory.class,
+                this::handle
+            )
+            .match(
+                WriteCompleted.class,
+                this::handle
+            )
+            .match(
+                CompactedHistoryRead.class,
+                this::handle
+            )
+            .match(
+                ReceiveTimeout.class,
+                this::handle
+            )
+            .match(
+                Stop.class,
+                this::handle
+            )
+            .match(
+                Replicator.UpdateResponse.class,
+                ignored -> {}
+            )
             .build();
     }
 
+    // Commands wait here while too many adjustments are waiting for a
+    // write, so the replies still leave in the order the commands arrived.
+    private Receive saturated() {
+        return receiveBuilder()
+            .match(
+                WriteCompleted.class,
+                this::handle
+            )
+            .match(
+                CompactedHistoryRead.class,
+                this::handle
+            )
+            .match(
+                WithDeadline.class,
+                WithDeadline::isExpired,
+                this::drop
+            )
+            .matchAny((msg) -> stash())
+            .build();
+    }
+
+    // Commands are checked again wherever they are taken up, so one that
+    // expired while it sat in the stash never reaches the repository.
+    private void drop(WithDeadline command) {
+        log.debug("Dropping Expired " +
+            command.getCommand().getClass().getSimpleName() +
+            " For " + loyaltyId.getValue());
+    }
+
+    private void handle(WithDeadline command) {
+        Command cmd = command.getCommand();
+
+        if(cmd instanceof ApplyLoyaltyAdjustment)
+            handle((ApplyLoyaltyAdjustment) cmd);
+        else if(cmd instanceof ApplyLoyaltyAdjustments)
+            handle((ApplyLoyaltyAdjustments) cmd);
+        else if(cmd instanceof GetLoyaltyInformation)
+            handle((GetLoyaltyInformation) cmd);
+        else if(cmd instanceof GetLoyaltyBalance)
+            handle((GetLoyaltyBalance) cmd);
+        else if(cmd instanceof GetLoyaltyHistory)
+            handle((GetLoyaltyHistory) cmd);
+        else
+            unhandled(cmd);
+    }
+
     private void handle(ApplyLoyaltyAdjustment cmd) {
-        LoyaltyAdjustment adjustment = cmd.getAdjustment();
+        Event result = apply(cmd.getAdjustment());
+
+        if(result instanceof LoyaltyAdjustmentApplied)
+            persist(result, 1);
+        else
+            reply(result);
+    }
+
+    private void handle(ApplyLoyaltyAdjustments cmd) {
+        List<Event> results = new ArrayList<>(cmd.getAdjustments().size());
+        int applied = 0;
+
+        for(LoyaltyAdjustment adjustment : cmd.getAdjustments()) {
+            Event result = apply(adjustment);
 
+            if(result instanceof LoyaltyAdjustmentApplied)
+                applied++;
+
+            results.add(result);
+        }
+
+        LoyaltyAdjustmentsProcessed processed =
+            new LoyaltyAdjustmentsProcessed(results);
+
+        if(applied > 0)
+            persist(processed, applied);
+        else
+            reply(processed);
+    }
+
+    private Event apply(LoyaltyAdjustment adjustment) {
         if(adjustment instanceof Deduct &&
             adjustment.getPoints() > loyaltyInformation.getCurrentTotal()) {
 
             log.info("Insufficient Points For "+loyaltyId.getValue());
 
-            getSender().tell(
-                new LoyaltyAdjustmentRejected(
-                    adjustment,
-                    "Insufficient Points"
-                ),
-                getSelf()
+            return new LoyaltyAdjustmentRejected(
+                adjustment,
+                "Insufficient Points"
             );
         } else {
 
@@ -157,19 +700,339 @@ class LoyaltyActor extends AbstractActorWithStash {
 
             loyaltyInformation = loyaltyInformation.applyAdjustment(adjustment);
 
-            CompletableFuture<LoyaltyAdjustmentApplied> result =
-                loyaltyRepository.updateLoyalty(loyaltyId, loyaltyInformation)
-                    .thenApply((done) ->
-                        new LoyaltyAdjustmentApplied(adjustment)
-                    );
-
-            pipe(result, getContext().getDispatcher()).to(getSender());
+            return new LoyaltyAdjustmentApplied(
+                adjustment,
+                loyaltyInformation.getCurrentTotal(),
+                loyaltyInformation.getAdjustmentCount()
+            );
         }
+    }
+
+    private void persist(Event acknowledgement, int adjustments) {
+        // Adjustments that arrive while every write slot is taken are
+        // coalesced into the next write, which carries them all.
+        pendingReplies.add(
+            new PendingReply(lastSequenceNr + 1, getSender(), acknowledgement)
+        );
+        coalescedAdjustments += adjustments;
 
+        if(writesInFlight < maxWritesInFlight)
+            write();
+        else if(coalescedAdjustments >= maxCoalescedAdjustments)
+            getContext().become(saturated());
+    }
+
+    private void write() {
+        long sequenceNr = ++lastSequenceNr;
+
+        CompletableFuture<WriteCompleted> result =
+            loyaltyRepository.updateLoyalty(loyaltyId, loyaltyInformation)
+                .handle((done, ex) -> new WriteCompleted(sequenceNr, ex));
+
+        pipe(result, getContext().getDispatcher()).to(getSelf());
+
+        coalescedAdjustments = 0;
+        writesInFlight++;
     }
 
     private void handle(GetLoyaltyInformation ignored) {
         log.info("Retrieving Loyalty Information For "+loyaltyId.getValue());
-        getSender().tell(loyaltyInformation, getSelf());
+
+        LoyaltyInformation current = loyaltyInformation;
+        int compacted = current.getHistoryOffset();
+
+        if(compacted == 0)
+            reply(current);
+        else
+            replyWithCompactedHistory(0, compacted, adjustments -> {
+                int[] history = Arrays.copyOf(
+                    adjustments,
+                    current.getAdjustmentCount()
+                );
+
+                for(int i = compacted; i < history.length; i++) {
+                    history[i] = current.getBalanceAdjustment(i);
+                }
+
+                return LoyaltyInformation.fromBalanceAdjustments(
+                    history,
+                    history.length
+                );
+            });
+    }
+
+    private void handle(GetLoyaltyBalance ignored) {
+        reply(new LoyaltyBalance(
+            loyaltyInformation.getCurrentTotal(),
+            loyaltyInformation.getAdjustmentCount()
+        ));
+    }
+
+    private void handle(GetLoyaltyHistory query) {
+        LoyaltyInformation current = loyaltyInformation;
+        int newest = current.getAdjustmentCount() - 1 - query.getOffset();
+        int oldest = Math.max(0, newest - query.getLimit() + 1);
+        int compacted = Math.min(current.getHistoryOffset(), newest + 1);
+
+        if(oldest >= compacted)
+            reply(historyPage(
+                current,
+                query.getOffset(),
+                newest,
+                oldest,
+                new int[0]
+            ));
+        else
+            replyWithCompactedHistory(oldest, compacted, adjustments ->
+                historyPage(
+                    current,
+                    query.getOffset(),
+                    newest,
+                    oldest,
+                    adjustments
+                )
+            );
+    }
+
+    // The part of the page that falls before the history offset comes from
+    // the compacted adjustments, which start at the oldest one on the page.
+    private static LoyaltyHistory historyPage(
+        LoyaltyInformation loyaltyInfo,
+        int offset,
+        int newest,
+        int oldest,
+        int[] compacted
+    ) {
+        int[] page = new int[Math.max(0, newest - oldest + 1)];
+
+        for(int i = 0; i < page.length; i++) {
+            int index = newest - i;
+
+            page[i] = index - oldest < compacted.length
+                ? compacted[index - oldest]
+                : loyaltyInfo.getBalanceAdjustment(index);
+        }
+
+        return new LoyaltyHistory(
+            loyaltyInfo.getCurrentTotal(),
+            loyaltyInfo.getAdjustmentCount(),
+            offset,
+            page
+        );
+    }
+
+    // Adjustments behind the history offset are read back from the
+    // repository, and the reply keeps its place in line meanwhile.
+    private void replyWithCompactedHistory(
+        int from,
+        int to,
+        Function<int[], Object> reply
+    ) {
+        PendingReply pending = new PendingReply(getSender(), null);
+        pendingReplies.add(pending);
+
+        CompletableFuture<CompactedHistoryRead> read = loyaltyRepository
+            .findBalanceAdjustments(loyaltyId, from, to)
+            .handle((adjustments, ex) -> new CompactedHistoryRead(
+                pending,
+                ex == null ? reply.apply(adjustments) : new Status.Failure(ex)
+            ));
+
+        pipe(read, getContext().getDispatcher()).to(getSelf());
+    }
+
+    private void handle(CompactedHistoryRead read) {
+        read.pending.reply = read.reply;
+        releaseReplies();
+
+        if(stopping && writesInFlight == 0 && pendingReplies.isEmpty())
+            getContext().stop(getSelf());
+    }
+
+    // Once the stash is full, further commands are turned away at once
+    // rather than piling up to be replayed together when the load finishes.
+    private void stashOrReject(Command cmd) {
+        if(commandsStashedWhileInitializing < stashCapacity) {
+            commandsStashedWhileInitializing++;
+            stash();
+        } else {
+            reject(cmd);
+        }
+    }
+
+    private void reject(Command cmd) {
+        if(cmd instanceof WithDeadline) {
+            reject(((WithDeadline) cmd).getCommand());
+        } else if(cmd instanceof ApplyLoyaltyAdjustment) {
+            reply(new LoyaltyAdjustmentRejected(
+                ((ApplyLoyaltyAdjustment) cmd).getAdjustment(),
+                ACCOUNT_UNAVAILABLE,
+                true
+            ));
+        } else if(cmd instanceof ApplyLoyaltyAdjustments) {
+            List<LoyaltyAdjustment> adjustments =
+                ((ApplyLoyaltyAdjustments) cmd).getAdjustments();
+            List<Event> results = new ArrayList<>(adjustments.size());
+
+            for(LoyaltyAdjustment adjustment : adjustments) {
+                results.add(new LoyaltyAdjustmentRejected(
+                    adjustment,
+                    ACCOUNT_UNAVAILABLE,
+                    true
+                ));
+            }
+
+            reply(new LoyaltyAdjustmentsProcessed(results));
+        } else {
+            reply(new AccountUnavailable());
+        }
+    }
+
+    private void handle(Status.Failure failure) {
+        Throwable cause = failure.cause();
+
+        if(cause instanceof CompletionException && cause.getCause() != null)
+            cause = cause.getCause();
+
+        if(cause instanceof CorruptLoyaltyInformationException) {
+            log.error("Corrupt Loyalty Information For " +
+                loyaltyId.getValue() + ": " + cause.getMessage());
+            recoveryTimer.cancel();
+            getContext().cancelReceiveTimeout();
+            getContext().become(corrupt(cause));
+            unstashAll();
+            getContext().getParent().tell(
+                new ShardRegion.Passivate(new Stop()),
+                getSelf()
+            );
+        } else {
+            log.warning("Unable To Load Loyalty Information For " +
+                loyaltyId.getValue() + ", Retrying In " +
+                loadBackoff.toMillis() + "ms: " + failure.cause());
+
+            loadRetryTimer = getContext().getSystem().scheduler().scheduleOnce(
+                loadBackoff,
+                getSelf(),
+                new RetryLoad(),
+                getContext().getDispatcher(),
+                getSelf()
+            );
+
+            loadBackoff = loadBackoff.multipliedBy(2);
+
+            if(loadBackoff.compareTo(maxLoadBackoff) > 0)
+                loadBackoff = maxLoadBackoff;
+        }
+    }
+
+    private void handle(RecoveryTimedOut ignored) {
+        log.error("Timed Out Loading Loyalty Information For " +
+            loyaltyId.getValue());
+        getContext().cancelReceiveTimeout();
+        getContext().become(unavailable());
+        unstashAll();
+        getContext().getParent().tell(
+            new ShardRegion.Passivate(new Stop()),
+            getSelf()
+        );
+    }
+
+    private void handle(ReceiveTimeout ignored) {
+        log.info("Passivating Idle Loyalty Actor For " + loyaltyId.getValue());
+        getContext().cancelReceiveTimeout();
+        getContext().getParent().tell(
+            new ShardRegion.Passivate(new Stop()),
+            getSelf()
+        );
+    }
+
+    private void handle(Stop ignored) {
+        stopping = true;
+
+        if(writesInFlight == 0 && pendingReplies.isEmpty())
+            getContext().stop(getSelf());
+    }
+
+    private void handle(WriteCompleted completed) {
+        for(PendingReply pending : pendingReplies) {
+            if(!pending.isWrite() || pending.sequenceNr > completed.sequenceNr)
+                continue;
+
+            if(completed.failure == null) {
+                // Every write carries the full history, so a write that
+                // succeeded also persisted the writes issued before it.
+                pending.reply = pending.acknowledgement;
+            } else if(pending.sequenceNr == completed.sequenceNr &&
+                !pending.isCompleted()) {
+
+                pending.reply = new Status.Failure(completed.failure);
+            }
+        }
+
+        if(completed.failure != null)
+            log.error(completed.failure, "Unable to persist write " +
+                completed.sequenceNr + " for " + loyaltyId.getValue());
+        else
+            publishBalance();
+
+        boolean wasSaturated =
+            coalescedAdjustments >= maxCoalescedAdjustments;
+
+        writesInFlight--;
+
+        if(coalescedAdjustments > 0)
+            write();
+
+        releaseReplies();
+
+        if(stopping && writesInFlight == 0 && pendingReplies.isEmpty()) {
+            getContext().stop(getSelf());
+        } else if(wasSaturated) {
+            getContext().become(running());
+            unstashAll();
+        }
+    }
+
+    private void publishBalance() {
+        if(publishBalanceChanges)
+            DistributedPubSub.get(getContext().getSystem()).mediator().tell(
+                new DistributedPubSubMediator.Publish(
+                    BalanceCache.TOPIC,
+                    new LoyaltyBalanceChanged(
+                        loyaltyId,
+                        loyaltyInformation.getCurrentTotal(),
+                        loyaltyInformation.getAdjustmentCount()
+                    )
+                ),
+                getSelf()
+            );
+
+        replicatedBalances.ifPresent(balances -> balances.publish(
+            loyaltyId,
+            new LoyaltyBalance(
+                loyaltyInformation.getCurrentTotal(),
+                loyaltyInformation.getAdjustmentCount()
+            ),
+            getSelf()
+        ));
+    }
+
+    private void reply(Object reply) {
+        pendingReplies.add(new PendingReply(getSender(), reply));
+        releaseReplies();
+    }
+
+    private void releaseReplies() {
+        while(!pendingReplies.isEmpty() && pendingReplies.peek().isCompleted()) {
+            PendingReply head = pendingReplies.peek();
+
+            // A failed write is only reported once no later write, which
+            // could still persist it, remains outstanding.
+            if(head.reply instanceof Status.Failure && writesInFlight > 0)
+                return;
+
+            pendingReplies.poll();
+            head.replyTo.tell(head.reply, getSelf());
+        }
     }
 }
@@ -3,44 +3,84 @@ package com.reactivebbq.loyalty;
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.cluster.sharding.ShardRegion;
 import akka.japi.pf.ReceiveBuilder;
+import com.lightbend.cinnamon.akka.CinnamonMetrics;
+import com.lightbend.cinnamon.metric.GaugeLong;
+import com.lightbend.cinnamon.metric.Rate;
 
-import java.io.Serializable;
+import scala.util.hashing.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 
 class LoyaltyActorSupervisor extends AbstractActor {
 
-    static ShardRegion.MessageExtractor messageExtractor = new ShardRegion.MessageExtractor() {
-        @Override
-        public String shardId(Object message) {
-            if(message instanceof Deliver)
-                return Integer.toString(
-                    ((Deliver) message).to.getValue().hashCode() % 30
-                );
-            else
-                return null;
-        }
+    static ShardRegion.MessageExtractor messageExtractor(int numberOfShards) {
+        return new ShardRegion.MessageExtractor() {
+            @Override
+            public String shardId(Object message) {
+                if(message instanceof Deliver)
+                    return Integer.toString(
+                        shardOf(((Deliver) message).to, numberOfShards)
+                    );
+                else
+                    return null;
+            }
 
-        @Override
-        public String entityId(Object message) {
-            if(message instanceof Deliver)
-                return ((Deliver) message).to.getValue();
-            else
-                return null;
-        }
+            @Override
+            public String entityId(Object message) {
+                if(message instanceof Deliver)
+                    return ((Deliver) message).to.getValue();
+                else
+                    return null;
+            }
 
-        @Override
-        public Object entityMessage(Object message) {
-            if(message instanceof Deliver)
-                return ((Deliver) message).command;
-            else
-                return null;
-        }
-    };
+            @Override
+            public Object entityMessage(Object message) {
+                if(message instanceof Deliver)
+                    return ((Deliver) message).getEntityMessage();
+                else
+                    return null;
+            }
+        };
+    }
+
+    // String.hashCode mixes similar ids poorly and can be negative, so the
+    // shard is taken from a murmur3 hash of the id bytes instead.
+    static int shardOf(LoyaltyId loyaltyId, int numberOfShards) {
+        int hash = MurmurHash3.bytesHashing().hash(
+            loyaltyId.getValue().getBytes(StandardCharsets.UTF_8)
+        );
+
+        return Math.floorMod(hash, numberOfShards);
+    }
+
+    static String describeShardSpread(int numberOfShards, int nodes) {
+        int fewest = numberOfShards / nodes;
+        int most = fewest + (numberOfShards % nodes == 0 ? 0 : 1);
+
+        return numberOfShards + " shards over " + nodes + " nodes gives " +
+            fewest + " to " + most + " shards per node, so the busiest " +
+            "node carries up to " +
+            Math.round(100.0 * most * nodes / numberOfShards - 100) +
+            "% more than an even share";
+    }
 
     static class Deliver implements SerializableMessage {
         private final LoyaltyActor.Command command;
         private final LoyaltyId to;
+        // A System.nanoTime reading on the node holding the message, after
+        // which nobody waits for the reply. Empty when there is no limit.
+        private final OptionalLong deadline;
 
         LoyaltyActor.Command getCommand() {
             return command;
@@ -50,9 +90,33 @@ class LoyaltyActorSupervisor extends AbstractActor {
             return to;
         }
 
+        Optional<Duration> getTimeLeft() {
+            if(deadline.isEmpty())
+                return Optional.empty();
+            else
+                return Optional.of(
+                    Duration.ofNanos(deadline.getAsLong() - System.nanoTime())
+                );
+        }
+
         Deliver(LoyaltyActor.Command command, LoyaltyId to) {
             this.command = command;
             this.to = to;
+            this.deadline = OptionalLong.empty();
+        }
+
+        Deliver(LoyaltyActor.Command command, LoyaltyId to, Duration timeLeft) {
+            this.command = command;
+            this.to = to;
+            this.deadline = OptionalLong.of(System.nanoTime() + timeLeft.toNanos());
+        }
+
+        LoyaltyActor.Command getEntityMessage() {
+            return getTimeLeft()
+                .<LoyaltyActor.Command>map(timeLeft ->
+                    new LoyaltyActor.WithDeadline(command, timeLeft)
+                )
+                .orElse(command);
         }
     }
 
@@ -63,29 +127,134 @@ class LoyaltyActorSupervisor extends AbstractActor {
         );
     }
 
+    private static class BufferedCommand {
+        private final LoyaltyActor.Command command;
+        private final ActorRef sender;
+
+        BufferedCommand(LoyaltyActor.Command command, ActorRef sender) {
+            this.command = command;
+            this.sender = sender;
+        }
+    }
+
     private final LoyaltyRepository loyaltyRepository;
+    private final int maxActiveEntities = getContext().getSystem()
+        .settings()
+        .config()
+        .getInt("loyalty.passivation.max-active-entities");
+
+    // Iterates from the least recently used entity.
+    private final LinkedHashMap<String, ActorRef> activeEntities =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    // Commands for entities that are flushing their writes before they
+    // stop are held here and delivered to a fresh actor afterwards.
+    private final Map<String, List<BufferedCommand>> passivating =
+        new HashMap<>();
+
+    private final CinnamonMetrics metrics = CinnamonMetrics.get(getContext());
+    private final GaugeLong activeEntitiesGauge =
+        metrics.createGaugeLong("activeEntities");
+    private final Rate idlePassivations =
+        metrics.createRate("idlePassivations");
+    private final Rate evictions = metrics.createRate("evictions");
 
     private LoyaltyActorSupervisor(LoyaltyRepository loyaltyRepository) {
         this.loyaltyRepository = loyaltyRepository;
     }
 
+    @Override
+    public void postStop() throws Exception {
+        activeEntitiesGauge.destroy();
+        idlePassivations.destroy();
+        evictions.destroy();
+        super.postStop();
+    }
+
     private ActorRef createLoyaltyActor(String name) {
-        return getContext().actorOf(LoyaltyActor.create(loyaltyRepository), name);
+        ActorRef loyaltyActor = getContext().actorOf(
+            LoyaltyActor.create(loyaltyRepository),
+            name
+        );
+
+        getContext().watch(loyaltyActor);
+        activeEntities.put(name, loyaltyActor);
+
+        if(activeEntities.size() > maxActiveEntities) {
+            String leastRecentlyUsed = activeEntities.keySet().iterator().next();
+            passivate(leastRecentlyUsed, new LoyaltyActor.Stop());
+            evictions.mark();
+        }
+
+        activeEntitiesGauge.set(activeEntities.size());
+
+        return loyaltyActor;
     }
 
     @Override
     public Receive createReceive() {
-        return ReceiveBuilder.create().match(
-            Deliver.class,
-            this::handle
-        ).build();
+        return ReceiveBuilder.create()
+            .match(
+                Deliver.class,
+                this::handle
+            )
+            .match(
+                ShardRegion.Passivate.class,
+                this::handle
+            )
+            .match(
+                Terminated.class,
+                this::handle
+            )
+            .build();
     }
 
     private void handle(Deliver cmd) {
-        ActorRef loyaltyActor = getContext()
-            .child(cmd.getTo().getValue())
-            .getOrElse(() -> createLoyaltyActor(cmd.getTo().getValue()));
+        String name = cmd.getTo().getValue();
+        List<BufferedCommand> buffer = passivating.get(name);
+
+        if(buffer != null) {
+            buffer.add(new BufferedCommand(cmd.getEntityMessage(), getSender()));
+            return;
+        }
+
+        ActorRef loyaltyActor = activeEntities.get(name);
+
+        if(loyaltyActor == null)
+            loyaltyActor = createLoyaltyActor(name);
+
+        loyaltyActor.forward(cmd.getEntityMessage(), getContext());
+    }
+
+    private void handle(ShardRegion.Passivate passivate) {
+        String name = getSender().path().name();
+
+        if(activeEntities.containsKey(name)) {
+            passivate(name, passivate.stopMessage());
+            idlePassivations.mark();
+        }
+    }
+
+    private void handle(Terminated terminated) {
+        String name = terminated.getActor().path().name();
+        List<BufferedCommand> buffer = passivating.remove(name);
+
+        activeEntities.remove(name);
+        activeEntitiesGauge.set(activeEntities.size());
+
+        if(buffer != null && !buffer.isEmpty()) {
+            ActorRef loyaltyActor = createLoyaltyActor(name);
+
+            for(BufferedCommand buffered : buffer) {
+                loyaltyActor.tell(buffered.command, buffered.sender);
+            }
+        }
+    }
+
+    private void passivate(String name, Object stopMessage) {
+        ActorRef loyaltyActor = activeEntities.remove(name);
 
-        loyaltyActor.forward(cmd.getCommand(), getContext());
+        passivating.put(name, new ArrayList<>());
+        loyaltyActor.tell(stopMessage, getSelf());
     }
 }
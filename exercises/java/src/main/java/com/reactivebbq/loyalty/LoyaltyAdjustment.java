@@ -5,6 +5,13 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 interface LoyaltyAdjustment extends SerializableMessage {
     int getBalanceAdjustment();
     int getPoints();
+
+    static LoyaltyAdjustment fromBalanceAdjustment(int balanceAdjustment) {
+        if(balanceAdjustment >= 0)
+            return new Award(balanceAdjustment);
+        else
+            return new Deduct(-balanceAdjustment);
+    }
 }
 
 class Award implements LoyaltyAdjustment {
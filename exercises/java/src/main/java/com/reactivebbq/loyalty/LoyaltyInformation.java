@@ -1,33 +1,105 @@
 package com.reactivebbq.loyalty;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 class LoyaltyInformation implements SerializableMessage {
-    static final LoyaltyInformation empty = new LoyaltyInformation(new ArrayList<>());
+    static final LoyaltyInformation empty = new LoyaltyInformation(AdjustmentHistory.empty, 0, 0);
 
-    private final List<LoyaltyAdjustment> adjustments;
+    // The adjustments before the history offset were compacted into a
+    // snapshot and are only reflected in the current total.
+    @JsonIgnore
+    private final AdjustmentHistory adjustments;
+    private final int historyOffset;
+    private final int currentTotal;
 
     List<LoyaltyAdjustment> getAdjustments() {
         return adjustments;
     }
 
+    private LoyaltyInformation(
+        AdjustmentHistory adjustments,
+        int historyOffset,
+        int currentTotal
+    ) {
+        this.adjustments = adjustments;
+        this.historyOffset = historyOffset;
+        this.currentTotal = currentTotal;
+    }
+
     @JsonCreator
-    private LoyaltyInformation(List<LoyaltyAdjustment> adjustments) {
-        this.adjustments = new ArrayList<>(adjustments);
+    private LoyaltyInformation(
+        @JsonProperty("adjustments") int[] adjustments,
+        @JsonProperty("historyOffset") int historyOffset,
+        @JsonProperty("currentTotal") int currentTotal
+    ) {
+        this(
+            AdjustmentHistory.of(adjustments, adjustments.length),
+            historyOffset,
+            currentTotal
+        );
+    }
+
+    static LoyaltyInformation fromBalanceAdjustments(
+        int[] balanceAdjustments,
+        int count
+    ) {
+        return fromSnapshot(0, 0, balanceAdjustments, count);
+    }
+
+    static LoyaltyInformation fromSnapshot(
+        int snapshotCount,
+        int snapshotTotal,
+        int[] balanceAdjustments,
+        int count
+    ) {
+        int total = snapshotTotal;
+
+        for(int i = 0; i < count; i++) {
+            total += balanceAdjustments[i];
+        }
+
+        return new LoyaltyInformation(
+            AdjustmentHistory.of(balanceAdjustments, count),
+            snapshotCount,
+            total
+        );
+    }
+
+    @JsonProperty("adjustments")
+    private int[] getBalanceAdjustments() {
+        return adjustments.toBalanceAdjustments();
     }
 
     int getCurrentTotal() {
-        return adjustments.stream()
-                .map(LoyaltyAdjustment::getBalanceAdjustment)
-                .reduce(0, (sum, adj) -> sum + adj);
+        return currentTotal;
+    }
+
+    int getHistoryOffset() {
+        return historyOffset;
+    }
+
+    int getAdjustmentCount() {
+        return historyOffset + adjustments.size();
+    }
+
+    int getBalanceAdjustment(int index) {
+        return adjustments.balanceAdjustmentAt(index - historyOffset);
+    }
+
+    void forEachBalanceAdjustment(IntConsumer action) {
+        adjustments.forEachBalanceAdjustment(action);
     }
 
     LoyaltyInformation applyAdjustment(LoyaltyAdjustment adjustment) {
-        List<LoyaltyAdjustment> updated = new ArrayList<>(adjustments);
-        updated.add(adjustment);
-        return new LoyaltyInformation(updated);
+        return new LoyaltyInformation(
+            adjustments.append(adjustment),
+            historyOffset,
+            currentTotal + adjustment.getBalanceAdjustment()
+        );
     }
 }
@@ -0,0 +1,368 @@
+package com.reactivebbq.loyalty;
+
+import akka.NotUsed;
+import akka.http.javadsl.marshalling.Marshaller;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.RequestEntity;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+// Renders the loyalty responses either as the original text or as JSON,
+// chosen by the Accept header. Both write straight into presized
+// ByteStrings rather than building up Strings first.
+class LoyaltyMarshallers {
+    static final int HISTORY_CHUNK_SIZE = 512;
+
+    // An adjustment renders to at most "- Deduct -2147483648\n".
+    private static final int MAX_ADJUSTMENT_LENGTH = 21;
+    private static final int MAX_HEADER_LENGTH = 96;
+
+    private interface Renderer {
+        ContentType contentType();
+
+        void event(ByteStringBuilder out, LoyaltyActor.Event event);
+
+        void balance(ByteStringBuilder out, int currentTotal, int adjustmentCount);
+
+        void historyStart(ByteStringBuilder out, int currentTotal, int adjustmentCount);
+
+        void adjustment(ByteStringBuilder out, int index, int adjustment);
+
+        void historyEnd(ByteStringBuilder out);
+    }
+
+    private static class TextRenderer implements Renderer {
+        private static final ByteString APPLIED = ascii("Applied: ");
+        private static final ByteString REJECTED = ascii("Rejected: ");
+        private static final ByteString AWARD = ascii("Award ");
+        private static final ByteString DEDUCT = ascii("Deduct ");
+        private static final ByteString BALANCE = ascii("Current Balance: ");
+        private static final ByteString HISTORY = ascii("\nHistory:\n");
+        private static final ByteString AWARD_LINE = ascii("- Award ");
+        private static final ByteString DEDUCT_LINE = ascii("- Deduct ");
+
+        @Override
+        public ContentType contentType() {
+            return ContentTypes.TEXT_PLAIN_UTF8;
+        }
+
+        @Override
+        public void event(ByteStringBuilder out, LoyaltyActor.Event event) {
+            LoyaltyAdjustment adjustment = adjustmentOf(event);
+
+            out.append(
+                event instanceof LoyaltyActor.LoyaltyAdjustmentApplied
+                    ? APPLIED
+                    : REJECTED
+            );
+            out.append(adjustment instanceof Deduct ? DEDUCT : AWARD);
+            putInt(out, adjustment.getPoints());
+        }
+
+        @Override
+        public void balance(ByteStringBuilder out, int currentTotal, int adjustmentCount) {
+            out.append(BALANCE);
+            putInt(out, currentTotal);
+            out.putByte((byte) '\n');
+        }
+
+        @Override
+        public void historyStart(ByteStringBuilder out, int currentTotal, int adjustmentCount) {
+            out.append(BALANCE);
+            putInt(out, currentTotal);
+            out.append(HISTORY);
+        }
+
+        @Override
+        public void adjustment(ByteStringBuilder out, int index, int adjustment) {
+            if(adjustment >= 0) {
+                out.append(AWARD_LINE);
+                putInt(out, adjustment);
+            } else {
+                out.append(DEDUCT_LINE);
+                putInt(out, -adjustment);
+            }
+
+            out.putByte((byte) '\n');
+        }
+
+        @Override
+        public void historyEnd(ByteStringBuilder out) {}
+    }
+
+    private static class JsonRenderer implements Renderer {
+        private static final ByteString APPLIED = ascii("{\"result\":\"applied\",\"adjustment\":\"");
+        private static final ByteString REJECTED = ascii("{\"result\":\"rejected\",\"adjustment\":\"");
+        private static final ByteString AWARD = ascii("award");
+        private static final ByteString DEDUCT = ascii("deduct");
+        private static final ByteString POINTS = ascii("\",\"points\":");
+        private static final ByteString REASON = ascii(",\"reason\":\"");
+        private static final ByteString BALANCE = ascii("{\"balance\":");
+        private static final ByteString ADJUSTMENT_COUNT = ascii(",\"adjustmentCount\":");
+        private static final ByteString HISTORY = ascii(",\"history\":[");
+        private static final ByteString HISTORY_END = ascii("]}");
+
+        @Override
+        public ContentType contentType() {
+            return ContentTypes.APPLICATION_JSON;
+        }
+
+        @Override
+        public void event(ByteStringBuilder out, LoyaltyActor.Event event) {
+            LoyaltyAdjustment adjustment = adjustmentOf(event);
+
+            out.append(
+                event instanceof LoyaltyActor.LoyaltyAdjustmentApplied
+                    ? APPLIED
+                    : REJECTED
+            );
+            out.append(adjustment instanceof Deduct ? DEDUCT : AWARD);
+            out.append(POINTS);
+            putInt(out, adjustment.getPoints());
+
+            if(event instanceof LoyaltyActor.LoyaltyAdjustmentRejected) {
+                out.append(REASON);
+                out.putBytes(JsonStringEncoder.getInstance().quoteAsUTF8(
+                    ((LoyaltyActor.LoyaltyAdjustmentRejected) event).getReason()
+                ));
+                out.putByte((byte) '"');
+            }
+
+            out.putByte((byte) '}');
+        }
+
+        @Override
+        public void balance(ByteStringBuilder out, int currentTotal, int adjustmentCount) {
+            out.append(BALANCE);
+            putInt(out, currentTotal);
+            out.append(ADJUSTMENT_COUNT);
+            putInt(out, adjustmentCount);
+            out.putByte((byte) '}');
+        }
+
+        @Override
+        public void historyStart(ByteStringBuilder out, int currentTotal, int adjustmentCount) {
+            out.append(BALANCE);
+            putInt(out, currentTotal);
+            out.append(ADJUSTMENT_COUNT);
+            putInt(out, adjustmentCount);
+            out.append(HISTORY);
+        }
+
+        @Override
+        public void adjustment(ByteStringBuilder out, int index, int adjustment) {
+            if(index > 0)
+                out.putByte((byte) ',');
+
+            putInt(out, adjustment);
+        }
+
+        @Override
+        public void historyEnd(ByteStringBuilder out) {
+            out.append(HISTORY_END);
+        }
+    }
+
+    private static final Renderer text = new TextRenderer();
+    private static final Renderer json = new JsonRenderer();
+
+    static final Marshaller<LoyaltyActor.Event, RequestEntity> event =
+        negotiated(LoyaltyMarshallers::renderEvent);
+
+    static final Marshaller<LoyaltyActor.LoyaltyBalance, RequestEntity> balance =
+        negotiated(LoyaltyMarshallers::renderBalance);
+
+    static final Marshaller<LoyaltyActor.LoyaltyHistory, RequestEntity> history =
+        negotiated(LoyaltyMarshallers::renderHistory);
+
+    static final Marshaller<LoyaltyInformation, RequestEntity> information =
+        negotiated(LoyaltyMarshallers::renderInformation);
+
+    private interface Rendering<T> {
+        RequestEntity render(Renderer renderer, T value);
+    }
+
+    // The text renderer comes first so that clients which send no Accept
+    // header keep getting the original format.
+    private static <T> Marshaller<T, RequestEntity> negotiated(
+        Rendering<T> rendering
+    ) {
+        return Marshaller.oneOf(
+            Marshaller.withFixedContentType(
+                text.contentType(),
+                (T value) -> rendering.render(text, value)
+            ),
+            Marshaller.withFixedContentType(
+                json.contentType(),
+                (T value) -> rendering.render(json, value)
+            )
+        );
+    }
+
+    private static RequestEntity renderEvent(
+        Renderer renderer,
+        LoyaltyActor.Event event
+    ) {
+        ByteStringBuilder out = builder(MAX_HEADER_LENGTH);
+        renderer.event(out, event);
+        return HttpEntities.create(renderer.contentType(), out.result());
+    }
+
+    private static RequestEntity renderBalance(
+        Renderer renderer,
+        LoyaltyActor.LoyaltyBalance balance
+    ) {
+        ByteStringBuilder out = builder(MAX_HEADER_LENGTH);
+        renderer.balance(
+            out,
+            balance.getCurrentTotal(),
+            balance.getAdjustmentCount()
+        );
+        return HttpEntities.create(renderer.contentType(), out.result());
+    }
+
+    private static RequestEntity renderHistory(
+        Renderer renderer,
+        LoyaltyActor.LoyaltyHistory history
+    ) {
+        int[] adjustments = history.getBalanceAdjustments();
+
+        return renderHistory(
+            renderer,
+            history.getCurrentTotal(),
+            history.getAdjustmentCount(),
+            adjustments.length,
+            (index) -> adjustments[index]
+        );
+    }
+
+    private static RequestEntity renderInformation(
+        Renderer renderer,
+        LoyaltyInformation info
+    ) {
+        return renderHistory(
+            renderer,
+            info.getCurrentTotal(),
+            info.getAdjustmentCount(),
+            info.getAdjustments().size(),
+            (index) -> info.getBalanceAdjustment(info.getHistoryOffset() + index)
+        );
+    }
+
+    // Long histories are rendered a chunk at a time as the response is
+    // written, so the whole body never has to be held in memory.
+    private static RequestEntity renderHistory(
+        Renderer renderer,
+        int currentTotal,
+        int adjustmentCount,
+        int size,
+        IntUnaryOperator adjustmentAt
+    ) {
+        if(size <= HISTORY_CHUNK_SIZE) {
+            ByteStringBuilder out = builder(
+                MAX_HEADER_LENGTH + size * MAX_ADJUSTMENT_LENGTH
+            );
+
+            renderer.historyStart(out, currentTotal, adjustmentCount);
+            renderAdjustments(renderer, out, adjustmentAt, 0, size);
+            renderer.historyEnd(out);
+
+            return HttpEntities.create(renderer.contentType(), out.result());
+        }
+
+        ByteStringBuilder start = builder(MAX_HEADER_LENGTH);
+        ByteStringBuilder end = builder(MAX_HEADER_LENGTH);
+
+        renderer.historyStart(start, currentTotal, adjustmentCount);
+        renderer.historyEnd(end);
+
+        Source<ByteString, NotUsed> chunks = Source
+            .fromIterator(() ->
+                IntStream.range(0, (size - 1) / HISTORY_CHUNK_SIZE + 1)
+                    .iterator()
+            )
+            .map((chunk) -> {
+                ByteStringBuilder out = builder(
+                    HISTORY_CHUNK_SIZE * MAX_ADJUSTMENT_LENGTH
+                );
+
+                renderAdjustments(
+                    renderer,
+                    out,
+                    adjustmentAt,
+                    chunk * HISTORY_CHUNK_SIZE,
+                    Math.min(size, (chunk + 1) * HISTORY_CHUNK_SIZE)
+                );
+
+                return out.result();
+            });
+
+        return HttpEntities.createChunked(
+            renderer.contentType(),
+            Source.single(start.result())
+                .concat(chunks)
+                .concat(Source.single(end.result()))
+                .filter((chunk) -> !chunk.isEmpty())
+        );
+    }
+
+    private static void renderAdjustments(
+        Renderer renderer,
+        ByteStringBuilder out,
+        IntUnaryOperator adjustmentAt,
+        int from,
+        int to
+    ) {
+        for(int i = from; i < to; i++) {
+            renderer.adjustment(out, i, adjustmentAt.applyAsInt(i));
+        }
+    }
+
+    private static LoyaltyAdjustment adjustmentOf(LoyaltyActor.Event event) {
+        if(event instanceof LoyaltyActor.LoyaltyAdjustmentApplied)
+            return ((LoyaltyActor.LoyaltyAdjustmentApplied) event).getAdjustment();
+        else if(event instanceof LoyaltyActor.LoyaltyAdjustmentRejected)
+            return ((LoyaltyActor.LoyaltyAdjustmentRejected) event).getAdjustment();
+        else
+            throw new IllegalArgumentException(
+                "Unable to render " + event.getClass().getName()
+            );
+    }
+
+    private static ByteStringBuilder builder(int sizeHint) {
+        ByteStringBuilder out = ByteString.createBuilder();
+        out.sizeHint(sizeHint);
+        return out;
+    }
+
+    private static ByteString ascii(String value) {
+        return ByteString.fromString(value);
+    }
+
+    // Writes the decimal digits directly, without an intermediate String.
+    static void putInt(ByteStringBuilder out, int value) {
+        long remaining = value;
+
+        if(remaining < 0) {
+            out.putByte((byte) '-');
+            remaining = -remaining;
+        }
+
+        long divisor = 1;
+
+        while(divisor * 10 <= remaining) {
+            divisor *= 10;
+        }
+
+        for(; divisor > 0; divisor /= 10) {
+            out.putByte((byte) ('0' + (remaining / divisor) % 10));
+        }
+    }
+}
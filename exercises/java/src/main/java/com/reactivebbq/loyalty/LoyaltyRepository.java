@@ -4,34 +4,75 @@ import akka.Done;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 
 interface LoyaltyRepository {
+    // Writes for the same id that complete out of order must not let an
+    // older history replace a newer one, so an update carrying fewer
+    // adjustments than the stored history is ignored.
     CompletableFuture<Done> updateLoyalty(
         LoyaltyId loyaltyId,
         LoyaltyInformation loyaltyInformation
     );
 
-    CompletableFuture<LoyaltyInformation> findLoyalty(LoyaltyId loyaltyId);
+    // Empty for an account that has never been written. A failed future
+    // means the account could not be read, not that it does not exist, and
+    // fails with CorruptLoyaltyInformationException when it was read but
+    // could not be decoded.
+    CompletableFuture<Optional<LoyaltyInformation>> findLoyalty(
+        LoyaltyId loyaltyId
+    );
+
+    // The adjustments from (inclusive) to (exclusive) of the full history,
+    // including any that findLoyalty left out behind a history offset.
+    default CompletableFuture<int[]> findBalanceAdjustments(
+        LoyaltyId loyaltyId,
+        int from,
+        int to
+    ) {
+        return findLoyalty(loyaltyId).thenApply(loyaltyInfo -> {
+            LoyaltyInformation history =
+                loyaltyInfo.orElse(LoyaltyInformation.empty);
+            int[] adjustments = new int[to - from];
 
+            for(int i = 0; i < adjustments.length; i++) {
+                adjustments[i] = history.getBalanceAdjustment(from + i);
+            }
+
+            return adjustments;
+        });
+    }
 }
 
 class InMemoryLoyaltyRepository implements LoyaltyRepository {
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    // Rough per-entry cost of the map node, the id and the loyalty
+    // information wrappers on a 64-bit JVM with compressed oops.
+    static final int ESTIMATED_ENTRY_OVERHEAD = 168;
 
-    private final Map<LoyaltyId, LoyaltyInformation> data;
+    private final ConcurrentHashMap<LoyaltyId, LoyaltyInformation> data;
     private final Executor executor;
 
     InMemoryLoyaltyRepository(Executor executor) {
-        data = new HashMap<>();
+        this(DEFAULT_INITIAL_CAPACITY, executor);
+    }
+
+    InMemoryLoyaltyRepository(int initialCapacity, Executor executor) {
+        data = new ConcurrentHashMap<>(initialCapacity);
         this.executor = executor;
     }
 
@@ -41,35 +82,74 @@ class InMemoryLoyaltyRepository implements LoyaltyRepository {
         LoyaltyInformation loyaltyInformation
     ) {
         return CompletableFuture.supplyAsync(() -> {
-            data.put(loyaltyId, loyaltyInformation);
+            data.merge(loyaltyId, loyaltyInformation, (stored, update) ->
+                stored.getAdjustmentCount() > update.getAdjustmentCount()
+                    ? stored
+                    : update
+            );
             return Done.getInstance();
-        });
+        }, executor);
     }
 
     @Override
-    public CompletableFuture<LoyaltyInformation> findLoyalty(
+    public CompletableFuture<Optional<LoyaltyInformation>> findLoyalty(
         LoyaltyId loyaltyId
     ) {
-        return CompletableFuture.supplyAsync(() -> {
-            if(data.containsKey(loyaltyId)) {
-                return data.get(loyaltyId);
-            } else {
-                throw new NoSuchElementException("The Id was not found: " +
-                    loyaltyId.getValue());
-            }
-        }, executor);
+        return CompletableFuture.supplyAsync(
+            () -> Optional.ofNullable(data.get(loyaltyId)),
+            executor
+        );
+    }
+
+    long size() {
+        return data.mappingCount();
+    }
+
+    // Walks every entry, so this is meant for reporting rather than for
+    // the request path.
+    long estimatedMemoryUsage() {
+        long total = 0;
+
+        for(Map.Entry<LoyaltyId, LoyaltyInformation> entry : data.entrySet()) {
+            total += ESTIMATED_ENTRY_OVERHEAD
+                + entry.getKey().getValue().length()
+                + (long) Integer.BYTES * entry.getValue().getAdjustments().size();
+        }
+
+        return total;
     }
 }
 
 class FileBasedLoyaltyRepository implements LoyaltyRepository {
 
+    // Writes to the same account take turns on its entry, which only
+    // lives while at least one of them is in flight. The count is guarded
+    // by the map, the rest by the entry itself.
+    private static class AccountWrites {
+        private int inFlight = 0;
+        private int written = -1;
+    }
+
     private final Path rootPath;
+    private final ReadMode readMode;
     private final Executor executor;
+    private final ConcurrentHashMap<LoyaltyId, AccountWrites> writes =
+        new ConcurrentHashMap<>();
 
     FileBasedLoyaltyRepository(Path rootPath, Executor executor)
         throws IOException {
 
+        this(rootPath, ReadMode.STANDARD, executor);
+    }
+
+    FileBasedLoyaltyRepository(
+        Path rootPath,
+        ReadMode readMode,
+        Executor executor
+    ) throws IOException {
+
         this.rootPath = rootPath;
+        this.readMode = readMode;
         this.executor = executor;
 
         Files.createDirectories(rootPath);
@@ -80,60 +160,176 @@ class FileBasedLoyaltyRepository implements LoyaltyRepository {
         LoyaltyId loyaltyId,
         LoyaltyInformation loyaltyInformation
     ) {
+        int count = loyaltyInformation.getAdjustmentCount();
+        AccountWrites account = writes.compute(loyaltyId, (id, current) -> {
+            AccountWrites started =
+                current == null ? new AccountWrites() : current;
+            started.inFlight++;
+            return started;
+        });
+
         return CompletableFuture.supplyAsync(() -> {
-            ArrayList<String> strings = new ArrayList<>();
+            try {
+                synchronized (account) {
+                    if(account.written < 0)
+                        account.written = storedCount(loyaltyId);
 
-            for(LoyaltyAdjustment adj : loyaltyInformation.getAdjustments()) {
-              strings.add(Integer.toString(adj.getBalanceAdjustment()));
-            }
+                    if(account.written <= count) {
+                        write(loyaltyId, loyaltyInformation);
+                        account.written = count;
+                    }
+                }
 
-            try {
-                File file = new File(rootPath.toFile(), loyaltyId.getValue());
-                Files.write(
-                    Paths.get(file.getAbsolutePath()),
-                    String.join(",", strings).getBytes()
+                return Done.getInstance();
+            } finally {
+                writes.computeIfPresent(loyaltyId, (id, current) ->
+                    --current.inFlight == 0 ? null : current
                 );
-            } catch (IOException ex) {
-                throw new CompletionException(ex);
             }
-
-            return Done.getInstance();
         }, executor);
     }
 
+    // Only the first of a run of writes has to look, later ones know what
+    // the write before them stored.
+    private int storedCount(LoyaltyId loyaltyId) {
+        Path path = rootPath.resolve(loyaltyId.getValue());
+
+        try {
+            if(Files.notExists(path))
+                return 0;
+
+            byte[] contents = Files.readAllBytes(path);
+            int count = contents.length == 0 ? 0 : 1;
+
+            for(byte current : contents) {
+                if(current == ',')
+                    count++;
+            }
+
+            return count;
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    // The new contents go to a temporary file that replaces the account's
+    // in one rename once it is on disk, so a reader sees either the old
+    // history or the new one and never part of a write.
+    private void write(
+        LoyaltyId loyaltyId,
+        LoyaltyInformation loyaltyInformation
+    ) {
+        ArrayList<String> strings = new ArrayList<>();
+
+        loyaltyInformation.forEachBalanceAdjustment(adj ->
+            strings.add(Integer.toString(adj))
+        );
+
+        Path temp = null;
+
+        try {
+            ByteBuffer contents =
+                ByteBuffer.wrap(String.join(",", strings).getBytes());
+            temp = Files.createTempFile(rootPath, loyaltyId.getValue(), ".tmp");
+
+            try(FileChannel channel =
+                FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                while(contents.hasRemaining()) {
+                    channel.write(contents);
+                }
+
+                channel.force(false);
+            }
+
+            Files.move(
+                temp,
+                rootPath.resolve(loyaltyId.getValue()),
+                StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (IOException ex) {
+            if(temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {}
+            }
+
+            throw new CompletionException(ex);
+        }
+    }
+
     @Override
-    public CompletableFuture<LoyaltyInformation> findLoyalty(
+    public CompletableFuture<Optional<LoyaltyInformation>> findLoyalty(
         LoyaltyId loyaltyId
     ) {
         return CompletableFuture.supplyAsync(() -> {
             try {
                 File file = new File(rootPath.toFile(), loyaltyId.getValue());
 
-                String fileContents = new String(
-                    Files.readAllBytes(
-                        Paths.get(file.getAbsolutePath())
-                    )
-                );
+                // Only a file known not to exist is a new account. When its
+                // existence can't be determined the read below reports why.
+                if(Files.notExists(file.toPath()))
+                    return Optional.empty();
 
-                LoyaltyInformation loyaltyInfo = LoyaltyInformation.empty;
-
-                for (String str : fileContents.split(",")) {
-                    int points = Integer.parseInt(str);
-                    if(points >=0)
-                        loyaltyInfo = loyaltyInfo.applyAdjustment(
-                            new Award(points)
-                        );
-                    else
-                        loyaltyInfo = loyaltyInfo.applyAdjustment(
-                            new Deduct(-points)
-                        );
-                }
+                if(readMode == ReadMode.MAPPED)
+                    return Optional.of(readMapped(file.toPath()));
 
-                return loyaltyInfo;
+                return Optional.of(decode(
+                    ByteBuffer.wrap(Files.readAllBytes(file.toPath())),
+                    file.toPath()
+                ));
             } catch (IOException ex) {
                 throw new CompletionException(ex);
             }
 
         }, executor);
     }
+
+    private LoyaltyInformation readMapped(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path)) {
+            return decode(
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                path
+            );
+        }
+    }
+
+    // Both read modes decode the same way. An empty file is an account
+    // with no adjustments, since that is what writing one stores, and
+    // anything else that isn't a comma separated list of ints is corrupt.
+    private static LoyaltyInformation decode(ByteBuffer contents, Path path) {
+        int[] adjustments = new int[16];
+        int count = 0;
+        long value = 0;
+        boolean negative = false;
+        boolean digits = false;
+
+        for(int i = 0; contents.limit() > 0 && i <= contents.limit(); i++) {
+            byte current = i < contents.limit() ? contents.get(i) : (byte) ',';
+
+            if(current == ',' && digits) {
+                if(count == adjustments.length)
+                    adjustments = Arrays.copyOf(adjustments, count * 2);
+
+                adjustments[count++] = (int) (negative ? -value : value);
+                value = 0;
+                negative = false;
+                digits = false;
+            } else if(current == '-' && !digits && !negative) {
+                negative = true;
+            } else if(current >= '0' && current <= '9' &&
+                value * 10 + (current - '0') <=
+                    Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+
+                value = value * 10 + (current - '0');
+                digits = true;
+            } else {
+                throw new CorruptLoyaltyInformationException(
+                    "Unable to decode " + path + " at " + i
+                );
+            }
+        }
+
+        return LoyaltyInformation.fromBalanceAdjustments(adjustments, count);
+    }
 }
@@ -1,58 +1,573 @@
 package com.reactivebbq.loyalty;
 
 import akka.actor.ActorRef;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpCharsets;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpEntity;
+import akka.http.javadsl.model.HttpHeader;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCode;
+import akka.http.javadsl.model.headers.RetryAfter;
 import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.Complete;
 import akka.http.javadsl.server.Route;
+import akka.http.javadsl.unmarshalling.StringUnmarshallers;
+import akka.http.javadsl.unmarshalling.Unmarshaller;
 import akka.http.scaladsl.model.StatusCodes;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static akka.http.javadsl.server.PathMatchers.integerSegment;
 import static akka.http.javadsl.server.PathMatchers.segment;
 import static akka.pattern.Patterns.ask;
 
 class LoyaltyRoutes extends AllDirectives {
+    static final int MAX_BATCH_SIZE = 10000;
+    static final int DEFAULT_MAX_INGEST_LINE_LENGTH = 1024;
+    static final int INGEST_PARALLELISM = 64;
+    static final int DEFAULT_HISTORY_PAGE_SIZE = 20;
+    static final int MAX_HISTORY_PAGE_SIZE = 1000;
+
+    static final ContentType.WithCharset NDJSON = ContentTypes.create(
+        MediaTypes.applicationWithOpenCharset("x-ndjson", "ndjson"),
+        HttpCharsets.UTF_8
+    );
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // An account that could not be loaded in time starts loading again on
+    // the next request, so the client is asked to come back shortly.
+    private static final HttpHeader ACCOUNT_RETRY_AFTER = RetryAfter.create(1L);
+
+    static class BatchEntry {
+        private final String account;
+        private final String adjustment;
+        private final int points;
+
+        @JsonCreator
+        BatchEntry(
+            @JsonProperty("account") String account,
+            @JsonProperty("adjustment") String adjustment,
+            @JsonProperty("points") int points
+        ) {
+            this.account = account;
+            this.adjustment = adjustment;
+            this.points = points;
+        }
+
+        static BatchEntry fromCsv(String line) {
+            String[] fields = line.split(",", -1);
+
+            if(fields.length != 3)
+                throw new IllegalArgumentException(
+                    "Expected account,adjustment,points but got: " + line
+                );
+
+            return new BatchEntry(
+                fields[0].trim(),
+                fields[1].trim(),
+                Integer.parseInt(fields[2].trim())
+            );
+        }
+
+        LoyaltyAdjustment toLoyaltyAdjustment() {
+            if(account == null || account.isEmpty())
+                throw new IllegalArgumentException("Missing account");
+            else if(points <= 0)
+                throw new IllegalArgumentException(
+                    "Points must be positive for " + account
+                );
+            else if("award".equals(adjustment))
+                return new Award(points);
+            else if("deduct".equals(adjustment))
+                return new Deduct(points);
+            else
+                throw new IllegalArgumentException(
+                    "Unknown adjustment for " + account + ": " + adjustment
+                );
+        }
+    }
+
+    // Splits the ingest body into lines without failing the stream on a
+    // long one. The bytes of a line over the limit are dropped as they
+    // arrive, so it costs no more memory than a valid line, and it comes
+    // out empty to be reported as invalid.
+    private static class LineSplitter implements
+        akka.japi.function.Function<ByteString, Iterable<Optional<String>>> {
+
+        private final int maxLineLength;
+        private ByteString line = ByteString.emptyByteString();
+        private boolean tooLong = false;
+
+        LineSplitter(int maxLineLength) {
+            this.maxLineLength = maxLineLength;
+        }
+
+        @Override
+        public Iterable<Optional<String>> apply(ByteString chunk) {
+            List<Optional<String>> lines = new ArrayList<>();
+            int start = 0;
+            int end;
+
+            while((end = chunk.indexOf((byte) '\n', start)) >= 0) {
+                append(chunk.slice(start, end));
+                lines.add(
+                    tooLong ? Optional.empty() : Optional.of(line.utf8String())
+                );
+                line = ByteString.emptyByteString();
+                tooLong = false;
+                start = end + 1;
+            }
+
+            append(chunk.drop(start));
+            return lines;
+        }
+
+        private void append(ByteString bytes) {
+            if(tooLong)
+                return;
+
+            if(line.size() + bytes.size() > maxLineLength) {
+                line = ByteString.emptyByteString();
+                tooLong = true;
+            } else {
+                line = line.concat(bytes);
+            }
+        }
+    }
+
+    // How long each kind of request waits for the loyalty actors. The time
+    // left travels with the command, so an actor that only gets to it
+    // after the caller gave up drops it rather than doing the work.
+    static class Timeouts {
+        static final Timeouts DEFAULT = new Timeouts(
+            Duration.ofSeconds(5),
+            Duration.ofSeconds(5),
+            Duration.ofSeconds(5),
+            Duration.ofSeconds(5)
+        );
+
+        private final Duration adjust;
+        private final Duration read;
+        private final Duration batch;
+        private final Duration ingest;
+
+        Timeouts(Duration adjust, Duration read, Duration batch, Duration ingest) {
+            this.adjust = adjust;
+            this.read = read;
+            this.batch = batch;
+            this.ingest = ingest;
+        }
+
+        static Timeouts fromConfig(Config config) {
+            return new Timeouts(
+                config.getDuration("adjust"),
+                config.getDuration("read"),
+                config.getDuration("batch"),
+                config.getDuration("ingest")
+            );
+        }
+
+        Duration getAdjust() {
+            return adjust;
+        }
+
+        Duration getRead() {
+            return read;
+        }
+
+        Duration getBatch() {
+            return batch;
+        }
+
+        Duration getIngest() {
+            return ingest;
+        }
+    }
+
     private final ActorRef loyaltyActors;
-    private final Duration timeout = Duration.ofSeconds(5);
+    private final Timeouts timeouts;
+    private final Optional<BalanceCache> balanceCache;
+    private final Optional<ReplicatedBalances> replicatedBalances;
+    private final Optional<AdmissionController> admissionController;
+    private final int maxIngestLineLength;
 
     LoyaltyRoutes(ActorRef loyaltyActors) {
+        this(
+            loyaltyActors,
+            Timeouts.DEFAULT,
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty()
+        );
+    }
+
+    LoyaltyRoutes(
+        ActorRef loyaltyActors,
+        Timeouts timeouts,
+        Optional<BalanceCache> balanceCache,
+        Optional<ReplicatedBalances> replicatedBalances,
+        Optional<AdmissionController> admissionController
+    ) {
+        this(
+            loyaltyActors,
+            timeouts,
+            balanceCache,
+            replicatedBalances,
+            admissionController,
+            DEFAULT_MAX_INGEST_LINE_LENGTH
+        );
+    }
+
+    LoyaltyRoutes(
+        ActorRef loyaltyActors,
+        Timeouts timeouts,
+        Optional<BalanceCache> balanceCache,
+        Optional<ReplicatedBalances> replicatedBalances,
+        Optional<AdmissionController> admissionController,
+        int maxIngestLineLength
+    ) {
         this.loyaltyActors = loyaltyActors;
+        this.timeouts = timeouts;
+        this.balanceCache = balanceCache;
+        this.replicatedBalances = replicatedBalances;
+        this.admissionController = admissionController;
+        this.maxIngestLineLength = maxIngestLineLength;
     }
 
     Route createRoutes() {
-        return pathPrefix("loyalty", () ->
+        return pathPrefix("loyalty", () -> concat(
+            path("batch", () ->
+                post(() -> admitBulk(false, release ->
+                    entity(Unmarshaller.entityToString(), this::applyBatch)
+                ))
+            ),
+            path("ingest", () ->
+                post(() -> admitBulk(true, release ->
+                    extractRequestEntity(entity -> ingest(entity, release))
+                ))
+            ),
             pathPrefix(segment(), (id) ->
                 concat(
                     pathPrefix("award", () ->
                         path(integerSegment(), (value) ->
-                            post(() -> awardLoyalty(id, value))
+                            post(() -> admit(new LoyaltyId(id), () ->
+                                awardLoyalty(id, value)
+                            ))
                         )
                     ),
                     pathPrefix("deduct", () ->
                         path(integerSegment(), (value) ->
-                            post(() -> deductLoyalty(id, value))
+                            post(() -> admit(new LoyaltyId(id), () ->
+                                deductLoyalty(id, value)
+                            ))
                         )
                     ),
                     pathEnd(() ->
-                        get(() -> getLoyalty(id))
+                        get(() -> admit(new LoyaltyId(id), () ->
+                            viewLoyalty(id)
+                        ))
                     )
                 )
             )
+        ));
+    }
+
+    // Requests beyond the admission limit get an immediate 503 rather than
+    // an ask that would only time out. A request counts as failed for the
+    // adaptive limit when it ends in a server error, other than the 503 of
+    // a single account that is still loading.
+    private Route admit(LoyaltyId loyaltyId, Supplier<Route> inner) {
+        return admit(
+            controller -> controller.tryAcquire(loyaltyId),
+            false,
+            release -> inner.get()
+        );
+    }
+
+    // A streamed response is still being written when its route completes,
+    // so the route is handed the release to run once the stream ends.
+    private Route admitBulk(boolean streamed, Function<Runnable, Route> inner) {
+        return admit(AdmissionController::tryAcquireBulk, streamed, inner);
+    }
+
+    private Route admit(
+        Function<AdmissionController, AdmissionController.Ticket> acquire,
+        boolean streamed,
+        Function<Runnable, Route> inner
+    ) {
+        if(admissionController.isEmpty())
+            return inner.apply(() -> {});
+
+        AdmissionController controller = admissionController.get();
+        AdmissionController.Ticket ticket = acquire.apply(controller);
+
+        if(ticket == null)
+            return complete(
+                StatusCodes.ServiceUnavailable(),
+                List.<HttpHeader>of(RetryAfter.create(
+                    Math.max(1L, controller.getRetryAfter().toSeconds())
+                )),
+                HttpEntities.create("Service Overloaded: Please Retry Later")
+            );
+
+        return mapRouteResultFuture(result ->
+            result.whenComplete((routeResult, ex) -> {
+                boolean responded = ex == null &&
+                    routeResult instanceof Complete;
+
+                if(streamed && responded)
+                    return;
+
+                int status = responded
+                    ? ((Complete) routeResult).getResponse().status().intValue()
+                    : 0;
+
+                ticket.complete(ex == null && (status < 500 || status == 503));
+            }),
+            () -> {
+                try {
+                    return inner.apply(() -> ticket.complete(true));
+                } catch(RuntimeException ex) {
+                    ticket.complete(false);
+                    throw ex;
+                }
+            }
         );
     }
 
+    // Entries for the same account go to its actor as one command, so a
+    // batch costs one ask and one write per account rather than per entry.
+    private Route applyBatch(String body) {
+        BatchEntry[] entries;
+        List<LoyaltyAdjustment> adjustments = new ArrayList<>();
+
+        try {
+            entries = mapper.readValue(body, BatchEntry[].class);
+
+            for(BatchEntry entry : entries) {
+                adjustments.add(entry.toLoyaltyAdjustment());
+            }
+        } catch (JsonProcessingException | IllegalArgumentException ex) {
+            return complete(
+                StatusCodes.BadRequest(),
+                "Invalid Batch: " + ex.getMessage()
+            );
+        }
+
+        if(entries.length > MAX_BATCH_SIZE)
+            return complete(
+                StatusCodes.BadRequest(),
+                "Invalid Batch: More than " + MAX_BATCH_SIZE + " entries"
+            );
+
+        Map<String, List<Integer>> entriesByAccount = new LinkedHashMap<>();
+
+        for(int i = 0; i < entries.length; i++) {
+            entriesByAccount
+                .computeIfAbsent(entries[i].account, account -> new ArrayList<>())
+                .add(i);
+        }
+
+        ObjectNode[] results = new ObjectNode[entries.length];
+        List<CompletableFuture<?>> deliveries = new ArrayList<>();
+
+        for(Map.Entry<String, List<Integer>> account :
+            entriesByAccount.entrySet()) {
+
+            List<Integer> indexes = account.getValue();
+            List<LoyaltyAdjustment> accountAdjustments =
+                new ArrayList<>(indexes.size());
+
+            for(int index : indexes) {
+                accountAdjustments.add(adjustments.get(index));
+            }
+
+            LoyaltyActor.ApplyLoyaltyAdjustments command =
+                new LoyaltyActor.ApplyLoyaltyAdjustments(accountAdjustments);
+
+            deliveries.add(
+                deliver(
+                    command,
+                    new LoyaltyId(account.getKey()),
+                    timeouts.getBatch()
+                ).thenApply((obj) ->
+                    (LoyaltyActor.LoyaltyAdjustmentsProcessed) obj
+                ).handle((processed, ex) -> {
+                    cacheAppliedBalance(
+                        new LoyaltyId(account.getKey()),
+                        processed
+                    );
+
+                    for(int i = 0; i < indexes.size(); i++) {
+                        int index = indexes.get(i);
+
+                        results[index] = batchResult(
+                            mapper.createObjectNode(),
+                            entries[index],
+                            processed == null
+                                ? null
+                                : processed.getResults().get(i)
+                        );
+                    }
+
+                    return null;
+                }).toCompletableFuture()
+            );
+        }
+
+        CompletableFuture<ArrayNode> response = CompletableFuture
+            .allOf(deliveries.toArray(new CompletableFuture[0]))
+            .thenApply((done) -> mapper.createArrayNode().addAll(List.of(results)));
+
+        return onSuccess(response, json ->
+            complete(HttpEntities.create(
+                ContentTypes.APPLICATION_JSON,
+                json.toString()
+            ))
+        );
+    }
+
+    // Ingest lines are dispatched with bounded parallelism and their
+    // results streamed back as they complete, so memory stays constant no
+    // matter how large the body is. Each result carries its line number
+    // since the results are not in submission order.
+    //
+    // onTermination runs once the stream ends, or if the stream has not
+    // started within the ingest timeout, which happens when the response
+    // is dropped before it is written. Running it twice is harmless.
+    private Route ingest(HttpEntity entity, Runnable onTermination) {
+        boolean csv = entity.getContentType().mediaType()
+            .equals(MediaTypes.TEXT_CSV);
+        CompletableFuture<Boolean> started = new CompletableFuture<>();
+
+        started
+            .completeOnTimeout(
+                false,
+                timeouts.getIngest().toMillis(),
+                TimeUnit.MILLISECONDS
+            )
+            .thenAccept(running -> {
+                if(!running)
+                    onTermination.run();
+            });
+
+        // The last line needs no newline of its own.
+        Source<ByteString, Object> results = entity.getDataBytes()
+            .concat(Source.single(ByteString.fromString("\n")))
+            .statefulMapConcat(() -> new LineSplitter(maxIngestLineLength))
+            .zipWithIndex()
+            .filter(line ->
+                line.first().map(text -> !text.isBlank()).orElse(true)
+            )
+            .mapAsyncUnordered(INGEST_PARALLELISM, line ->
+                line.first()
+                    .map(text -> ingestLine(text.trim(), line.second() + 1, csv))
+                    .orElseGet(() -> CompletableFuture.completedFuture(
+                        mapper.createObjectNode()
+                            .put("line", line.second() + 1)
+                            .put("result", "invalid")
+                            .put("reason", "Longer than " +
+                                maxIngestLineLength + " bytes")
+                    ))
+            )
+            .map(result -> ByteString.fromString(result.toString() + "\n"))
+            .watchTermination((mat, done) -> {
+                started.complete(true);
+                done.whenComplete((terminated, ex) -> onTermination.run());
+                return mat;
+            });
+
+        return complete(HttpEntities.createChunked(NDJSON, results));
+    }
+
+    private CompletionStage<ObjectNode> ingestLine(
+        String line,
+        long lineNumber,
+        boolean csv
+    ) {
+        ObjectNode result = mapper.createObjectNode().put("line", lineNumber);
+        BatchEntry entry;
+        LoyaltyAdjustment adjustment;
+
+        try {
+            entry = csv
+                ? BatchEntry.fromCsv(line)
+                : mapper.readValue(line, BatchEntry.class);
+            adjustment = entry.toLoyaltyAdjustment();
+        } catch (JsonProcessingException | IllegalArgumentException ex) {
+            return CompletableFuture.completedFuture(
+                result.put("result", "invalid").put("reason", ex.getMessage())
+            );
+        }
+
+        return deliver(
+            new LoyaltyActor.ApplyLoyaltyAdjustment(adjustment),
+            new LoyaltyId(entry.account),
+            timeouts.getIngest()
+        ).handle((event, ex) -> {
+            cacheAppliedBalance(new LoyaltyId(entry.account), event);
+            return batchResult(result, entry, (LoyaltyActor.Event) event);
+        });
+    }
+
+    // A missing event means the account did not answer in time.
+    private static ObjectNode batchResult(
+        ObjectNode result,
+        BatchEntry entry,
+        LoyaltyActor.Event event
+    ) {
+        result
+            .put("account", entry.account)
+            .put("adjustment", entry.adjustment)
+            .put("points", entry.points);
+
+        if(event instanceof LoyaltyActor.LoyaltyAdjustmentApplied)
+            return result.put("result", "applied");
+        else if(event instanceof LoyaltyActor.LoyaltyAdjustmentRejected)
+            return result
+                .put("result", "rejected")
+                .put("reason", (
+                    (LoyaltyActor.LoyaltyAdjustmentRejected) event
+                ).getReason());
+        else
+            return result.put("result", "failed");
+    }
+
     private Route awardLoyalty(String id, int value) {
+        if(value <= 0)
+            return invalidPoints(value);
+
         LoyaltyId loyaltyId = new LoyaltyId(id);
         LoyaltyActor.ApplyLoyaltyAdjustment command =
                 new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(value));
 
         CompletionStage<LoyaltyActor.Event> result =
-            ask(
-                loyaltyActors,
-                new LoyaltyActorSupervisor.Deliver(command, loyaltyId),
-                timeout
-            ).thenApply((obj) -> (LoyaltyActor.Event) obj);
+            deliver(command, loyaltyId, timeouts.getAdjust()).thenApply((obj) -> {
+                cacheAppliedBalance(loyaltyId, obj);
+                return (LoyaltyActor.Event) obj;
+            });
 
         return onComplete(result, maybeResult ->
             maybeResult.map(this::complete)
@@ -61,16 +576,18 @@ class LoyaltyRoutes extends AllDirectives {
     }
 
     private Route deductLoyalty(String id, int value) {
+        if(value <= 0)
+            return invalidPoints(value);
+
         LoyaltyId loyaltyId = new LoyaltyId(id);
         LoyaltyActor.ApplyLoyaltyAdjustment command =
                 new LoyaltyActor.ApplyLoyaltyAdjustment(new Deduct(value));
 
         CompletionStage<LoyaltyActor.Event> result =
-            ask(
-                loyaltyActors,
-                new LoyaltyActorSupervisor.Deliver(command, loyaltyId),
-                timeout
-            ).thenApply((obj) -> (LoyaltyActor.Event) obj);
+            deliver(command, loyaltyId, timeouts.getAdjust()).thenApply((obj) -> {
+                cacheAppliedBalance(loyaltyId, obj);
+                return (LoyaltyActor.Event) obj;
+            });
 
         return onComplete(result, maybeResult ->
             maybeResult.map(this::complete)
@@ -78,26 +595,82 @@ class LoyaltyRoutes extends AllDirectives {
         );
     }
 
+    // A zero point adjustment changes nothing, so like a negative one it is
+    // turned away before it reaches an account.
+    private Route invalidPoints(int value) {
+        return complete(
+            StatusCodes.BadRequest(),
+            "Invalid Points: Must be positive but was " + value
+        );
+    }
+
     private Route complete(LoyaltyActor.Event event) {
+        StatusCode status;
+        List<HttpHeader> headers = List.of();
+
         if(event instanceof LoyaltyActor.LoyaltyAdjustmentApplied) {
-            LoyaltyActor.LoyaltyAdjustmentApplied applied =
-                (LoyaltyActor.LoyaltyAdjustmentApplied) event;
-            LoyaltyAdjustment adjustment = applied.getAdjustment();
-            return complete(
-                StatusCodes.OK(),
-                "Applied: "+adjustment.getClass().getSimpleName() +
-                        " " + adjustment.getPoints()
-            );
+            status = StatusCodes.OK();
+        } else if(isRetryable(event)) {
+            status = StatusCodes.ServiceUnavailable();
+            headers = List.of(ACCOUNT_RETRY_AFTER);
         } else {
-            LoyaltyActor.LoyaltyAdjustmentRejected rejected =
-                (LoyaltyActor.LoyaltyAdjustmentRejected) event;
-            LoyaltyAdjustment adjustment = rejected.getAdjustment();
-            return complete(
-                StatusCodes.BadRequest(),
-                "Rejected: "+adjustment.getClass().getSimpleName() +
-                        " " + adjustment.getPoints()
-            );
+            status = StatusCodes.BadRequest();
         }
+
+        return complete(status, headers, event, LoyaltyMarshallers.event);
+    }
+
+    private static boolean isRetryable(LoyaltyActor.Event event) {
+        return event instanceof LoyaltyActor.LoyaltyAdjustmentRejected &&
+            ((LoyaltyActor.LoyaltyAdjustmentRejected) event).isRetryable();
+    }
+
+    // A query the account could not answer because it is not loaded is
+    // retryable, like an adjustment rejected for the same reason.
+    private <T> Route completeReply(
+        CompletionStage<Object> reply,
+        Class<T> type,
+        Function<T, Route> inner
+    ) {
+        return onComplete(reply, maybeReply ->
+            maybeReply.map(obj ->
+                obj instanceof LoyaltyActor.AccountUnavailable
+                    ? complete(
+                        StatusCodes.ServiceUnavailable(),
+                        List.of(ACCOUNT_RETRY_AFTER),
+                        HttpEntities.create(LoyaltyActor.ACCOUNT_UNAVAILABLE)
+                    )
+                    : inner.apply(type.cast(obj))
+            )
+            .get()
+        );
+    }
+
+    // With no parameters the whole history is returned, oldest first, for
+    // existing clients. A view of balance or a page of limit/offset asks the
+    // actor for only that much.
+    private Route viewLoyalty(String id) {
+        return parameterOptional("view", (view) ->
+            parameterOptional(StringUnmarshallers.INTEGER, "offset", (offset) ->
+                parameterOptional(StringUnmarshallers.INTEGER, "limit", (limit) -> {
+                    if(view.isPresent() && view.get().equals("balance"))
+                        return getBalance(id);
+                    else if(view.isPresent())
+                        return complete(
+                            StatusCodes.BadRequest(),
+                            "Invalid View: " + view.get()
+                        );
+                    else if(offset.isPresent() || limit.isPresent())
+                        return getHistory(
+                            id,
+                            offset.orElse(0),
+                            limit.orElse(DEFAULT_HISTORY_PAGE_SIZE)
+                        );
+                    else
+                        return getLoyalty(id);
+                })
+            )
+        );
     }
 
     private Route getLoyalty(String id) {
@@ -105,39 +678,132 @@ class LoyaltyRoutes extends AllDirectives {
         LoyaltyActor.GetLoyaltyInformation command =
             new LoyaltyActor.GetLoyaltyInformation();
 
-        CompletionStage<LoyaltyInformation> result =
-            ask(
-                loyaltyActors,
-                new LoyaltyActorSupervisor.Deliver(command, loyaltyId),
-                timeout
-            ).thenApply((obj) -> (LoyaltyInformation) obj);
+        return completeReply(
+            deliver(command, loyaltyId, timeouts.getRead()),
+            LoyaltyInformation.class,
+            info -> {
+                cacheBalance(
+                    loyaltyId,
+                    info.getCurrentTotal(),
+                    info.getAdjustmentCount()
+                );
+                return complete(info);
+            }
+        );
+    }
 
-        return onComplete(result, maybeResult ->
-            maybeResult.map(this::complete)
-            .get()
+    // Only the balance crosses the cluster, not the history, and not even
+    // that when this node has it cached or replicated.
+    private Route getBalance(String id) {
+        LoyaltyId loyaltyId = new LoyaltyId(id);
+        Optional<LoyaltyActor.LoyaltyBalance> cached = balanceCache
+            .flatMap(cache -> cache.get(loyaltyId));
+
+        if(cached.isPresent())
+            return completeOK(cached.get(), LoyaltyMarshallers.balance);
+
+        CompletionStage<Object> result = replicatedBalances
+            .map(balances -> balances.get(loyaltyId).thenCompose(replicated ->
+                replicated.isPresent()
+                    ? CompletableFuture.<Object>completedFuture(replicated.get())
+                    : askBalance(loyaltyId)
+            ))
+            .orElseGet(() -> askBalance(loyaltyId));
+
+        return completeReply(result, LoyaltyActor.LoyaltyBalance.class, balance -> {
+            balanceCache.ifPresent(cache -> cache.put(loyaltyId, balance));
+            return completeOK(balance, LoyaltyMarshallers.balance);
+        });
+    }
+
+    private CompletionStage<Object> askBalance(LoyaltyId loyaltyId) {
+        LoyaltyActor.GetLoyaltyBalance command =
+            new LoyaltyActor.GetLoyaltyBalance();
+
+        return deliver(command, loyaltyId, timeouts.getRead());
+    }
+
+    private CompletionStage<Object> deliver(
+        LoyaltyActor.Command command,
+        LoyaltyId loyaltyId,
+        Duration timeout
+    ) {
+        return ask(
+            loyaltyActors,
+            new LoyaltyActorSupervisor.Deliver(command, loyaltyId, timeout),
+            timeout
         );
     }
 
-    private Route complete(LoyaltyInformation info) {
-        StringBuilder adjustments = new StringBuilder();
-
-        for(LoyaltyAdjustment adj : info.getAdjustments()) {
-            if(adj instanceof Award)
-                adjustments
-                    .append("- Award ")
-                    .append(adj.getPoints())
-                    .append("\n");
-            else
-                adjustments
-                    .append("- Deduct ")
-                    .append(adj.getPoints())
-                    .append("\n");
-        }
+    private Route getHistory(String id, int offset, int limit) {
+        if(offset < 0 || limit <= 0 || limit > MAX_HISTORY_PAGE_SIZE)
+            return complete(
+                StatusCodes.BadRequest(),
+                "Invalid Page: offset must be at least 0 and limit between 1 and " +
+                    MAX_HISTORY_PAGE_SIZE
+            );
 
-        return complete(
-            "Current Balance: "+info.getCurrentTotal()+"\n"+
-                "History:\n"+
-                adjustments
+        LoyaltyId loyaltyId = new LoyaltyId(id);
+        LoyaltyActor.GetLoyaltyHistory command =
+            new LoyaltyActor.GetLoyaltyHistory(offset, limit);
+
+        return completeReply(
+            deliver(command, loyaltyId, timeouts.getRead()),
+            LoyaltyActor.LoyaltyHistory.class,
+            history -> {
+                cacheBalance(
+                    loyaltyId,
+                    history.getCurrentTotal(),
+                    history.getAdjustmentCount()
+                );
+                return complete(history);
+            }
         );
     }
+
+    private void cacheBalance(
+        LoyaltyId loyaltyId,
+        int currentTotal,
+        int adjustmentCount
+    ) {
+        balanceCache.ifPresent(cache -> cache.put(
+            loyaltyId,
+            new LoyaltyActor.LoyaltyBalance(currentTotal, adjustmentCount)
+        ));
+    }
+
+    // The balance after the latest applied adjustment replaces the cached
+    // one. A read reply still on its way carries fewer adjustments, so
+    // the cache ignores it instead of restoring the old balance.
+    private void cacheAppliedBalance(LoyaltyId loyaltyId, Object reply) {
+        List<LoyaltyActor.Event> results = List.of();
+
+        if(reply instanceof LoyaltyActor.LoyaltyAdjustmentApplied)
+            results = List.of((LoyaltyActor.Event) reply);
+        else if(reply instanceof LoyaltyActor.LoyaltyAdjustmentsProcessed)
+            results = ((LoyaltyActor.LoyaltyAdjustmentsProcessed) reply)
+                .getResults();
+
+        for(int i = results.size() - 1; i >= 0; i--) {
+            if(results.get(i) instanceof LoyaltyActor.LoyaltyAdjustmentApplied) {
+                LoyaltyActor.LoyaltyAdjustmentApplied applied =
+                    (LoyaltyActor.LoyaltyAdjustmentApplied) results.get(i);
+
+                cacheBalance(
+                    loyaltyId,
+                    applied.getCurrentTotal(),
+                    applied.getAdjustmentCount()
+                );
+                return;
+            }
+        }
+    }
+
+    private Route complete(LoyaltyActor.LoyaltyHistory history) {
+        return completeOK(history, LoyaltyMarshallers.history);
+    }
+
+    private Route complete(LoyaltyInformation info) {
+        return completeOK(info, LoyaltyMarshallers.information);
+    }
 }
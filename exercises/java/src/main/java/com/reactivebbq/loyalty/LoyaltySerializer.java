@@ -0,0 +1,463 @@
+package com.reactivebbq.loyalty;
+
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Encodes the messages that cross the cluster with one or two letter
+// manifests and varint packed fields, instead of the class names and
+// reflection Jackson needs.
+class LoyaltySerializer extends SerializerWithStringManifest {
+    static final int IDENTIFIER = 7120;
+
+    private static final String DELIVER = "D";
+    private static final String APPLY_ADJUSTMENT = "A";
+    private static final String APPLY_ADJUSTMENTS = "AS";
+    private static final String WITH_DEADLINE = "W";
+    private static final String GET_INFORMATION = "G";
+    private static final String GET_BALANCE = "GB";
+    private static final String GET_HISTORY = "GH";
+    private static final String STOP = "S";
+    private static final String ADJUSTMENT_APPLIED = "P";
+    private static final String ADJUSTMENT_REJECTED = "R";
+    private static final String ADJUSTMENTS_PROCESSED = "PS";
+    private static final String LOYALTY_INFORMATION = "I";
+    private static final String LOYALTY_BALANCE = "B";
+    private static final String LOYALTY_HISTORY = "H";
+    private static final String BALANCE_CHANGED = "BC";
+    private static final String ACCOUNT_UNAVAILABLE = "U";
+
+    private static class Writer {
+        private byte[] bytes = new byte[32];
+        private int size = 0;
+
+        void writeByte(int value) {
+            if(size == bytes.length)
+                bytes = Arrays.copyOf(bytes, size * 2);
+
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            while((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            writeByte(value);
+        }
+
+        void writeVarlong(long value) {
+            while((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            writeByte((int) value);
+        }
+
+        // Zig-zag encoding keeps small negative numbers short.
+        void writeSignedVarint(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        void writeString(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+
+            writeVarint(encoded.length);
+
+            for(byte b : encoded) {
+                writeByte(b);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte current;
+
+            do {
+                current = bytes[position++];
+                value |= (current & 0x7F) << shift;
+                shift += 7;
+            } while((current & 0x80) != 0);
+
+            return value;
+        }
+
+        long readVarlong() {
+            long value = 0;
+            int shift = 0;
+            byte current;
+
+            do {
+                current = bytes[position++];
+                value |= (long) (current & 0x7F) << shift;
+                shift += 7;
+            } while((current & 0x80) != 0);
+
+            return value;
+        }
+
+        int readSignedVarint() {
+            int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            int length = readVarint();
+            String value = new String(
+                bytes,
+                position,
+                length,
+                StandardCharsets.UTF_8
+            );
+
+            position += length;
+            return value;
+        }
+    }
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if(o instanceof LoyaltyActorSupervisor.Deliver)
+            return DELIVER;
+        else if(o instanceof LoyaltyActor.ApplyLoyaltyAdjustment)
+            return APPLY_ADJUSTMENT;
+        else if(o instanceof LoyaltyActor.ApplyLoyaltyAdjustments)
+            return APPLY_ADJUSTMENTS;
+        else if(o instanceof LoyaltyActor.WithDeadline)
+            return WITH_DEADLINE;
+        else if(o instanceof LoyaltyActor.GetLoyaltyInformation)
+            return GET_INFORMATION;
+        else if(o instanceof LoyaltyActor.GetLoyaltyBalance)
+            return GET_BALANCE;
+        else if(o instanceof LoyaltyActor.GetLoyaltyHistory)
+            return GET_HISTORY;
+        else if(o instanceof LoyaltyActor.Stop)
+            return STOP;
+        else if(o instanceof LoyaltyActor.LoyaltyAdjustmentApplied)
+            return ADJUSTMENT_APPLIED;
+        else if(o instanceof LoyaltyActor.LoyaltyAdjustmentRejected)
+            return ADJUSTMENT_REJECTED;
+        else if(o instanceof LoyaltyActor.LoyaltyAdjustmentsProcessed)
+            return ADJUSTMENTS_PROCESSED;
+        else if(o instanceof LoyaltyInformation)
+            return LOYALTY_INFORMATION;
+        else if(o instanceof LoyaltyActor.LoyaltyBalance)
+            return LOYALTY_BALANCE;
+        else if(o instanceof LoyaltyActor.LoyaltyHistory)
+            return LOYALTY_HISTORY;
+        else if(o instanceof LoyaltyActor.LoyaltyBalanceChanged)
+            return BALANCE_CHANGED;
+        else if(o instanceof LoyaltyActor.AccountUnavailable)
+            return ACCOUNT_UNAVAILABLE;
+        else
+            throw new IllegalArgumentException(
+                "Unable to serialize " + o.getClass().getName()
+            );
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        Writer writer = new Writer();
+        write(writer, o);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest)
+        throws NotSerializableException {
+
+        return read(new Reader(bytes), manifest);
+    }
+
+    private void write(Writer writer, Object o) {
+        if(o instanceof LoyaltyActorSupervisor.Deliver) {
+            LoyaltyActorSupervisor.Deliver deliver =
+                (LoyaltyActorSupervisor.Deliver) o;
+
+            writer.writeString(deliver.getTo().getValue());
+            writer.writeVarlong(
+                // Zero means no deadline, so an expired one is sent as 1.
+                deliver.getTimeLeft()
+                    .map(timeLeft -> Math.max(1L, timeLeftNanos(timeLeft)))
+                    .orElse(0L)
+            );
+            writer.writeString(manifest(deliver.getCommand()));
+            write(writer, deliver.getCommand());
+        } else if(o instanceof LoyaltyActor.WithDeadline) {
+            LoyaltyActor.WithDeadline command = (LoyaltyActor.WithDeadline) o;
+
+            writer.writeVarlong(timeLeftNanos(command.getTimeLeft()));
+            writer.writeString(manifest(command.getCommand()));
+            write(writer, command.getCommand());
+        } else if(o instanceof LoyaltyActor.ApplyLoyaltyAdjustment) {
+            writeAdjustment(
+                writer,
+                ((LoyaltyActor.ApplyLoyaltyAdjustment) o).getAdjustment()
+            );
+        } else if(o instanceof LoyaltyActor.ApplyLoyaltyAdjustments) {
+            List<LoyaltyAdjustment> adjustments =
+                ((LoyaltyActor.ApplyLoyaltyAdjustments) o).getAdjustments();
+
+            writer.writeVarint(adjustments.size());
+
+            for(LoyaltyAdjustment adjustment : adjustments) {
+                writeAdjustment(writer, adjustment);
+            }
+        } else if(o instanceof LoyaltyActor.LoyaltyAdjustmentApplied) {
+            LoyaltyActor.LoyaltyAdjustmentApplied applied =
+                (LoyaltyActor.LoyaltyAdjustmentApplied) o;
+
+            writeAdjustment(writer, applied.getAdjustment());
+            writer.writeSignedVarint(applied.getCurrentTotal());
+            writer.writeVarint(applied.getAdjustmentCount());
+        } else if(o instanceof LoyaltyActor.LoyaltyAdjustmentRejected) {
+            LoyaltyActor.LoyaltyAdjustmentRejected rejected =
+                (LoyaltyActor.LoyaltyAdjustmentRejected) o;
+
+            writeAdjustment(writer, rejected.getAdjustment());
+            writer.writeString(rejected.getReason());
+            writer.writeVarint(rejected.isRetryable() ? 1 : 0);
+        } else if(o instanceof LoyaltyActor.LoyaltyAdjustmentsProcessed) {
+            List<LoyaltyActor.Event> results =
+                ((LoyaltyActor.LoyaltyAdjustmentsProcessed) o).getResults();
+
+            writer.writeVarint(results.size());
+
+            for(LoyaltyActor.Event result : results) {
+                writer.writeString(manifest(result));
+                write(writer, result);
+            }
+        } else if(o instanceof LoyaltyInformation) {
+            LoyaltyInformation info = (LoyaltyInformation) o;
+
+            writer.writeVarint(info.getHistoryOffset());
+            writer.writeSignedVarint(info.getCurrentTotal());
+            writer.writeVarint(info.getAdjustments().size());
+            info.forEachBalanceAdjustment(writer::writeSignedVarint);
+        } else if(o instanceof LoyaltyActor.GetLoyaltyHistory) {
+            LoyaltyActor.GetLoyaltyHistory query =
+                (LoyaltyActor.GetLoyaltyHistory) o;
+
+            writer.writeVarint(query.getOffset());
+            writer.writeVarint(query.getLimit());
+        } else if(o instanceof LoyaltyActor.LoyaltyBalance) {
+            LoyaltyActor.LoyaltyBalance balance =
+                (LoyaltyActor.LoyaltyBalance) o;
+
+            writer.writeSignedVarint(balance.getCurrentTotal());
+            writer.writeVarint(balance.getAdjustmentCount());
+        } else if(o instanceof LoyaltyActor.LoyaltyHistory) {
+            LoyaltyActor.LoyaltyHistory history =
+                (LoyaltyActor.LoyaltyHistory) o;
+
+            writer.writeSignedVarint(history.getCurrentTotal());
+            writer.writeVarint(history.getAdjustmentCount());
+            writer.writeVarint(history.getOffset());
+            writer.writeVarint(history.getBalanceAdjustments().length);
+
+            for(int adjustment : history.getBalanceAdjustments()) {
+                writer.writeSignedVarint(adjustment);
+            }
+        } else if(o instanceof LoyaltyActor.LoyaltyBalanceChanged) {
+            LoyaltyActor.LoyaltyBalanceChanged changed =
+                (LoyaltyActor.LoyaltyBalanceChanged) o;
+
+            writer.writeString(changed.getLoyaltyId().getValue());
+            writer.writeSignedVarint(changed.getCurrentTotal());
+            writer.writeVarint(changed.getAdjustmentCount());
+        } else if(!(o instanceof LoyaltyActor.GetLoyaltyInformation) &&
+            !(o instanceof LoyaltyActor.GetLoyaltyBalance) &&
+            !(o instanceof LoyaltyActor.Stop) &&
+            !(o instanceof LoyaltyActor.AccountUnavailable)) {
+
+            throw new IllegalArgumentException(
+                "Unable to serialize " + o.getClass().getName()
+            );
+        }
+    }
+
+    private Object read(Reader reader, String manifest)
+        throws NotSerializableException {
+
+        switch(manifest) {
+            case DELIVER: {
+                LoyaltyId to = new LoyaltyId(reader.readString());
+                long timeLeft = reader.readVarlong();
+                LoyaltyActor.Command command = (LoyaltyActor.Command)
+                    read(reader, reader.readString());
+
+                if(timeLeft == 0)
+                    return new LoyaltyActorSupervisor.Deliver(command, to);
+                else
+                    return new LoyaltyActorSupervisor.Deliver(
+                        command,
+                        to,
+                        Duration.ofNanos(timeLeft)
+                    );
+            }
+            case WITH_DEADLINE: {
+                long timeLeft = reader.readVarlong();
+                LoyaltyActor.Command command = (LoyaltyActor.Command)
+                    read(reader, reader.readString());
+
+                return new LoyaltyActor.WithDeadline(
+                    command,
+                    Duration.ofNanos(timeLeft)
+                );
+            }
+            case APPLY_ADJUSTMENT:
+                return new LoyaltyActor.ApplyLoyaltyAdjustment(
+                    readAdjustment(reader)
+                );
+            case APPLY_ADJUSTMENTS: {
+                int size = reader.readVarint();
+                List<LoyaltyAdjustment> adjustments = new ArrayList<>(size);
+
+                for(int i = 0; i < size; i++) {
+                    adjustments.add(readAdjustment(reader));
+                }
+
+                return new LoyaltyActor.ApplyLoyaltyAdjustments(adjustments);
+            }
+            case GET_INFORMATION:
+                return new LoyaltyActor.GetLoyaltyInformation();
+            case GET_BALANCE:
+                return new LoyaltyActor.GetLoyaltyBalance();
+            case GET_HISTORY:
+                return new LoyaltyActor.GetLoyaltyHistory(
+                    reader.readVarint(),
+                    reader.readVarint()
+                );
+            case STOP:
+                return new LoyaltyActor.Stop();
+            case ADJUSTMENT_APPLIED:
+                return new LoyaltyActor.LoyaltyAdjustmentApplied(
+                    readAdjustment(reader),
+                    reader.readSignedVarint(),
+                    reader.readVarint()
+                );
+            case ADJUSTMENT_REJECTED:
+                return new LoyaltyActor.LoyaltyAdjustmentRejected(
+                    readAdjustment(reader),
+                    reader.readString(),
+                    reader.readVarint() == 1
+                );
+            case ADJUSTMENTS_PROCESSED: {
+                int size = reader.readVarint();
+                List<LoyaltyActor.Event> results = new ArrayList<>(size);
+
+                for(int i = 0; i < size; i++) {
+                    results.add(
+                        (LoyaltyActor.Event) read(reader, reader.readString())
+                    );
+                }
+
+                return new LoyaltyActor.LoyaltyAdjustmentsProcessed(results);
+            }
+            case LOYALTY_INFORMATION: {
+                int historyOffset = reader.readVarint();
+                int currentTotal = reader.readSignedVarint();
+                int count = reader.readVarint();
+                int[] adjustments = new int[count];
+                int snapshotTotal = currentTotal;
+
+                for(int i = 0; i < count; i++) {
+                    adjustments[i] = reader.readSignedVarint();
+                    snapshotTotal -= adjustments[i];
+                }
+
+                return LoyaltyInformation.fromSnapshot(
+                    historyOffset,
+                    snapshotTotal,
+                    adjustments,
+                    count
+                );
+            }
+            case LOYALTY_BALANCE:
+                return new LoyaltyActor.LoyaltyBalance(
+                    reader.readSignedVarint(),
+                    reader.readVarint()
+                );
+            case LOYALTY_HISTORY: {
+                int currentTotal = reader.readSignedVarint();
+                int adjustmentCount = reader.readVarint();
+                int offset = reader.readVarint();
+                int[] adjustments = new int[reader.readVarint()];
+
+                for(int i = 0; i < adjustments.length; i++) {
+                    adjustments[i] = reader.readSignedVarint();
+                }
+
+                return new LoyaltyActor.LoyaltyHistory(
+                    currentTotal,
+                    adjustmentCount,
+                    offset,
+                    adjustments
+                );
+            }
+            case BALANCE_CHANGED:
+                return new LoyaltyActor.LoyaltyBalanceChanged(
+                    new LoyaltyId(reader.readString()),
+                    reader.readSignedVarint(),
+                    reader.readVarint()
+                );
+            case ACCOUNT_UNAVAILABLE:
+                return new LoyaltyActor.AccountUnavailable();
+            default:
+                throw new NotSerializableException(
+                    "Unknown manifest: " + manifest
+                );
+        }
+    }
+
+    private static long timeLeftNanos(Duration timeLeft) {
+        return Math.max(0L, timeLeft.toNanos());
+    }
+
+    // The kind is written in the low bit rather than taken from the sign
+    // of the balance, so an adjustment keeps its kind whatever its points.
+    private static void writeAdjustment(
+        Writer writer,
+        LoyaltyAdjustment adjustment
+    ) {
+        long kind = adjustment instanceof Deduct ? 1L : 0L;
+
+        writer.writeVarlong(((long) adjustment.getPoints() << 1) | kind);
+    }
+
+    private static LoyaltyAdjustment readAdjustment(Reader reader) {
+        long encoded = reader.readVarlong();
+        int points = (int) (encoded >>> 1);
+
+        if((encoded & 1L) == 1L)
+            return new Deduct(points);
+        else
+            return new Award(points);
+    }
+}
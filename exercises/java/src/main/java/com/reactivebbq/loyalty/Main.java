@@ -5,13 +5,19 @@ import akka.actor.ActorSystem;
 import akka.http.javadsl.ConnectHttp;
 import akka.http.javadsl.Http;
 import akka.stream.Materializer;
+import com.lightbend.cinnamon.akka.CinnamonMetrics;
+import com.lightbend.cinnamon.metric.GaugeLong;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.Executors;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,6 +27,7 @@ class Main {
     private static Materializer materializer;
     private static LoyaltyRepository loyaltyRepository;
     private static ActorRef loyaltyActorSupervisor;
+    private static Optional<BalanceCache> balanceCache;
 
     public static void main(String[] args) {
         loadConfigOverrides(args);
@@ -28,6 +35,7 @@ class Main {
         initializeActorSystem();
         initializeRepositories();
         initializeActors();
+        initializeBalanceCache();
         initializeHttpServer();
     }
 
@@ -53,18 +61,94 @@ class Main {
     }
 
     private static void initializeRepositories() {
-        Path rootPath = Paths.get("tmp");
+        Config config = system.settings()
+            .config()
+            .getConfig("loyalty.repository");
+
+        Path rootPath = Paths.get(config.getString("root-path"));
+        String type = config.getString("type");
+        ReadMode readMode = ReadMode.valueOf(
+            config.getString("read-mode").toUpperCase()
+        );
+        Executor blockingIoDispatcher = system.dispatchers()
+            .lookup("loyalty.blocking-io-dispatcher");
+
         try {
-            loyaltyRepository = new FileBasedLoyaltyRepository(
-                rootPath,
-                system.getDispatcher()
-            );
+            if(type.equals("journal")) {
+                loyaltyRepository = new JournalLoyaltyRepository(
+                    rootPath.resolve("journal"),
+                    config.getBytes("journal.segment-size"),
+                    config.getInt("journal.group-commit.max-batch-size"),
+                    config.getDuration("journal.group-commit.max-batch-delay"),
+                    config.getInt("journal.snapshot-interval"),
+                    readMode,
+                    blockingIoDispatcher
+                );
+            } else if(type.equals("memory")) {
+                InMemoryLoyaltyRepository inMemoryRepository =
+                    new InMemoryLoyaltyRepository(
+                        config.getInt("memory.initial-capacity"),
+                        blockingIoDispatcher
+                    );
+
+                reportMemoryUsage(
+                    inMemoryRepository,
+                    config.getDuration("memory.metrics-interval")
+                );
+
+                loyaltyRepository = inMemoryRepository;
+            } else {
+                loyaltyRepository = new FileBasedLoyaltyRepository(
+                    rootPath,
+                    readMode,
+                    blockingIoDispatcher
+                );
+            }
         } catch(IOException ex) {
             logger.error("Unable to initialize Loyalty Repo", ex);
         }
     }
 
+    // The usage estimate walks every account, so it is sampled on a timer
+    // off the default dispatcher rather than kept up to date on writes.
+    private static void reportMemoryUsage(
+        InMemoryLoyaltyRepository repository,
+        Duration interval
+    ) {
+        CinnamonMetrics metrics = CinnamonMetrics.get(system);
+        GaugeLong accounts = metrics.createGaugeLong("repositoryAccounts");
+        GaugeLong memoryUsage =
+            metrics.createGaugeLong("repositoryEstimatedMemoryUsage");
+
+        system.scheduler().scheduleWithFixedDelay(
+            interval,
+            interval,
+            () -> {
+                accounts.set(repository.size());
+                memoryUsage.set(repository.estimatedMemoryUsage());
+            },
+            system.dispatchers().lookup("loyalty.blocking-io-dispatcher")
+        );
+    }
+
     private static void initializeActors() {
+        Config config = system.settings()
+            .config()
+            .getConfig("loyalty.sharding");
+
+        int numberOfShards = positiveInt(config, "number-of-shards");
+        int maxNodes = positiveInt(config, "max-nodes");
+
+        logger.info(LoyaltyActorSupervisor.describeShardSpread(
+            numberOfShards,
+            maxNodes
+        ));
+
+        if(numberOfShards < maxNodes * 10)
+            logger.warn("Only " + numberOfShards + " shards for up to " +
+                maxNodes + " nodes, rebalancing will be uneven. Use at least " +
+                maxNodes * 10 + ".");
+
         loyaltyActorSupervisor = system.actorOf(
             LoyaltyActorSupervisor.create(loyaltyRepository)
         );
@@ -74,12 +158,66 @@ class Main {
         //     "loyalty",
         //     LoyaltyActor.create(loyaltyRepository),
         //     ClusterShardingSettings.create(system),
-        //     LoyaltyActorSupervisor.messageExtractor
+        //     LoyaltyActorSupervisor.messageExtractor(numberOfShards)
         // );
     }
 
+    private static int positiveInt(Config config, String path) {
+        int value = config.getInt(path);
+
+        if(value < 1)
+            throw new ConfigException.BadValue(
+                config.getValue(path).origin(),
+                path,
+                "Must be at least 1 but was " + value
+            );
+
+        return value;
+    }
+
+    private static void initializeBalanceCache() {
+        Config config = system.settings()
+            .config()
+            .getConfig("loyalty.balance-cache");
+
+        balanceCache = BalanceCache.fromConfig(config);
+
+        if(balanceCache.isPresent() &&
+            config.getBoolean("cluster-notifications"))
+            system.actorOf(
+                BalanceCache.Subscriber.create(balanceCache.get()),
+                "balance-cache"
+            );
+    }
+
+    private static Optional<AdmissionController> initializeAdmissionController() {
+        Config config = system.settings()
+            .config()
+            .getConfig("loyalty.admission");
+
+        if(!config.getBoolean("enabled"))
+            return Optional.empty();
+
+        return Optional.of(new AdmissionController(
+            config,
+            CinnamonMetrics.get(system)
+        ));
+    }
+
     private static void initializeHttpServer() {
-        LoyaltyRoutes routes = new LoyaltyRoutes(loyaltyActorSupervisor);
+        LoyaltyRoutes routes = new LoyaltyRoutes(
+            loyaltyActorSupervisor,
+            LoyaltyRoutes.Timeouts.fromConfig(
+                system.settings().config().getConfig("loyalty.routes.timeouts")
+            ),
+            balanceCache,
+            ReplicatedBalances.fromConfig(system),
+            initializeAdmissionController(),
+            positiveInt(
+                system.settings().config().getConfig("loyalty.routes"),
+                "max-ingest-line-length"
+            )
+        );
 
         int httpPort = system.settings()
             .config()
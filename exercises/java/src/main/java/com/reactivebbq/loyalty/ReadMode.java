@@ -0,0 +1,6 @@
+package com.reactivebbq.loyalty;
+
+enum ReadMode {
+    STANDARD,
+    MAPPED
+}
@@ -0,0 +1,136 @@
+package com.reactivebbq.loyalty;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.LWWRegister;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+import static akka.pattern.Patterns.ask;
+
+// A read model of every account balance, replicated to all nodes with
+// Distributed Data, so any node can answer a balance read without the
+// account's actor. Balances are spread over a number of LWWMaps keyed by
+// a hash of the account, and each entry is versioned by its adjustment
+// count so a replica never goes back to an older balance.
+class ReplicatedBalances {
+    private static final LWWRegister.Clock<LoyaltyActor.LoyaltyBalance> version =
+        (currentTimestamp, balance) -> balance.getAdjustmentCount();
+
+    private final ActorRef replicator;
+    private final SelfUniqueAddress node;
+    private final int numberOfKeys;
+    private final Replicator.ReadConsistency readConsistency;
+    private final Duration askTimeout;
+
+    ReplicatedBalances(
+        ActorSystem system,
+        int numberOfKeys,
+        String readConsistency,
+        Duration readTimeout
+    ) {
+        DistributedData distributedData = DistributedData.get(system);
+
+        this.replicator = distributedData.replicator();
+        this.node = distributedData.selfUniqueAddress();
+        this.numberOfKeys = numberOfKeys;
+        this.askTimeout = readTimeout.plusSeconds(1);
+
+        if(readConsistency.equals("local"))
+            this.readConsistency = Replicator.readLocal();
+        else if(readConsistency.equals("majority"))
+            this.readConsistency = new Replicator.ReadMajority(readTimeout);
+        else if(readConsistency.equals("all"))
+            this.readConsistency = new Replicator.ReadAll(readTimeout);
+        else
+            throw new IllegalArgumentException(
+                "Unknown read consistency: " + readConsistency
+            );
+    }
+
+    static Optional<ReplicatedBalances> fromConfig(ActorSystem system) {
+        Config config = system.settings()
+            .config()
+            .getConfig("loyalty.replicated-balances");
+
+        if(!config.getBoolean("enabled"))
+            return Optional.empty();
+
+        return Optional.of(new ReplicatedBalances(
+            system,
+            config.getInt("number-of-keys"),
+            config.getString("read-consistency"),
+            config.getDuration("read-timeout")
+        ));
+    }
+
+    Key<LWWMap<String, LoyaltyActor.LoyaltyBalance>> keyOf(LoyaltyId loyaltyId) {
+        return LWWMapKey.create(
+            "loyalty-balances-" +
+                LoyaltyActorSupervisor.shardOf(loyaltyId, numberOfKeys)
+        );
+    }
+
+    // The update is only applied locally and spreads by gossip. The
+    // replicator acknowledges it to the given actor.
+    void publish(
+        LoyaltyId loyaltyId,
+        LoyaltyActor.LoyaltyBalance balance,
+        ActorRef replyTo
+    ) {
+        replicator.tell(
+            new Replicator.Update<>(
+                keyOf(loyaltyId),
+                LWWMap.create(),
+                Replicator.writeLocal(),
+                balances -> balances.put(
+                    node,
+                    loyaltyId.getValue(),
+                    balance,
+                    version
+                )
+            ),
+            replyTo
+        );
+    }
+
+    // Empty when no replica this read reached knows the account, or when
+    // the read could not reach enough of them in time.
+    CompletionStage<Optional<LoyaltyActor.LoyaltyBalance>> get(
+        LoyaltyId loyaltyId
+    ) {
+        Key<LWWMap<String, LoyaltyActor.LoyaltyBalance>> key = keyOf(loyaltyId);
+
+        return ask(
+            replicator,
+            new Replicator.Get<>(key, readConsistency),
+            askTimeout
+        ).thenApply(response -> {
+            if(response instanceof Replicator.GetSuccess) {
+                @SuppressWarnings("unchecked")
+                LWWMap<String, LoyaltyActor.LoyaltyBalance> balances =
+                    ((Replicator.GetSuccess<LWWMap<String, LoyaltyActor.LoyaltyBalance>>) response)
+                        .get(key);
+
+                Option<LoyaltyActor.LoyaltyBalance> balance =
+                    balances.get(loyaltyId.getValue());
+
+                return balance.isDefined()
+                    ? Optional.of(balance.get())
+                    : Optional.<LoyaltyActor.LoyaltyBalance>empty();
+            } else {
+                return Optional.empty();
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package com.reactivebbq.loyalty;
+
+import com.lightbend.cinnamon.akka.CinnamonMetrics;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class AdmissionControllerTest extends AkkaTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    private AdmissionController controller(String overrides) {
+        Config config = ConfigFactory.parseString(overrides)
+            .withFallback(ConfigFactory.load().getConfig("loyalty.admission"));
+
+        return new AdmissionController(config, CinnamonMetrics.get(system), clock::get);
+    }
+
+    @Test
+    void tryAcquire_shouldRejectRequestsOverTheLimit() {
+        AdmissionController controller = controller("initial-limit = 2, min-limit = 1");
+
+        assertNotNull(controller.tryAcquire(null));
+        AdmissionController.Ticket ticket = controller.tryAcquire(null);
+        assertNull(controller.tryAcquire(null));
+
+        ticket.complete(true);
+
+        assertNotNull(controller.tryAcquire(null));
+    }
+
+    @Test
+    void tryAcquire_shouldRejectRequestsOverTheAccountLimit() {
+        AdmissionController controller = controller("max-in-flight-per-account = 1");
+        LoyaltyId loyaltyId = new LoyaltyId("account");
+
+        AdmissionController.Ticket ticket = controller.tryAcquire(loyaltyId);
+
+        assertNull(controller.tryAcquire(loyaltyId));
+        assertNotNull(controller.tryAcquire(new LoyaltyId("other")));
+
+        ticket.complete(true);
+
+        assertNotNull(controller.tryAcquire(loyaltyId));
+    }
+
+    @Test
+    void complete_shouldGrowTheLimitWhileItIsUsedAndFast() {
+        AdmissionController controller = controller("initial-limit = 2");
+
+        controller.tryAcquire(null);
+        controller.tryAcquire(null).complete(true);
+
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    void complete_shouldLeaveTheLimitAloneForBulkRequests() {
+        AdmissionController controller = controller("initial-limit = 2, min-limit = 1, target-latency = 100ms");
+
+        AdmissionController.Ticket bulk = controller.tryAcquireBulk();
+        assertNotNull(controller.tryAcquireBulk());
+        assertNull(controller.tryAcquireBulk());
+
+        clock.addAndGet(Duration.ofSeconds(10).toNanos());
+        bulk.complete(false);
+
+        assertEquals(2, controller.getLimit());
+        assertEquals(1, controller.getInFlight());
+    }
+
+    @Test
+    void complete_shouldOnlyCountTheFirstCompletion() {
+        AdmissionController controller = controller("initial-limit = 4, min-limit = 1, backoff-ratio = 0.5");
+
+        controller.tryAcquire(null);
+        AdmissionController.Ticket ticket = controller.tryAcquire(null);
+
+        ticket.complete(false);
+        ticket.complete(false);
+
+        assertEquals(2, controller.getLimit());
+        assertEquals(1, controller.getInFlight());
+    }
+
+    @Test
+    void complete_shouldShrinkTheLimitWhenARequestIsSlowOrFails() {
+        AdmissionController controller = controller("initial-limit = 100, backoff-ratio = 0.5, min-limit = 30, target-latency = 100ms");
+
+        AdmissionController.Ticket slow = controller.tryAcquire(null);
+        clock.addAndGet(Duration.ofMillis(101).toNanos());
+        slow.complete(true);
+
+        assertEquals(50, controller.getLimit());
+
+        controller.tryAcquire(null).complete(false);
+
+        assertEquals(30, controller.getLimit());
+        assertEquals(0, controller.getInFlight());
+    }
+}
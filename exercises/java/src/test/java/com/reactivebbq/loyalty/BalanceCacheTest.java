@@ -0,0 +1,59 @@
+package com.reactivebbq.loyalty;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BalanceCacheTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final BalanceCache cache = new BalanceCache(2, Duration.ofSeconds(5), clock::get);
+    private final LoyaltyId loyaltyId = new LoyaltyId("account");
+
+    private Optional<Integer> balance(LoyaltyId id) {
+        return cache.get(id).map(LoyaltyActor.LoyaltyBalance::getCurrentTotal);
+    }
+
+    @Test
+    void get_shouldReturnTheCachedBalance() {
+        cache.put(loyaltyId, new LoyaltyActor.LoyaltyBalance(10, 1));
+
+        assertEquals(Optional.of(10), balance(loyaltyId));
+        assertEquals(Optional.empty(), balance(new LoyaltyId("other")));
+    }
+
+    @Test
+    void get_shouldExpireABalanceAfterTheTimeToLive() {
+        cache.put(loyaltyId, new LoyaltyActor.LoyaltyBalance(10, 1));
+        clock.addAndGet(Duration.ofSeconds(5).toNanos());
+
+        assertEquals(Optional.empty(), balance(loyaltyId));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void put_shouldIgnoreAnOlderBalance() {
+        cache.put(loyaltyId, new LoyaltyActor.LoyaltyBalance(30, 3));
+        cache.put(loyaltyId, new LoyaltyActor.LoyaltyBalance(10, 1));
+
+        assertEquals(Optional.of(30), balance(loyaltyId));
+    }
+
+    @Test
+    void put_shouldEvictTheLeastRecentlyUsedBalance() {
+        LoyaltyId second = new LoyaltyId("second");
+        LoyaltyId third = new LoyaltyId("third");
+
+        cache.put(loyaltyId, new LoyaltyActor.LoyaltyBalance(10, 1));
+        cache.put(second, new LoyaltyActor.LoyaltyBalance(20, 1));
+        cache.get(loyaltyId);
+        cache.put(third, new LoyaltyActor.LoyaltyBalance(30, 1));
+
+        assertEquals(2, cache.size());
+        assertEquals(Optional.of(10), balance(loyaltyId));
+        assertEquals(Optional.empty(), balance(second));
+    }
+}
@@ -1,12 +1,17 @@
 package com.reactivebbq.loyalty;
 
 import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.sharding.ShardRegion;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 
 import static akka.pattern.Patterns.ask;
 
+import java.util.UUID;
 import java.util.concurrent.Executors;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -72,4 +77,122 @@ class LoyaltyActorSupervisorTest extends AkkaTest {
         assertEquals(2, result.getAdjustments().size());
     }
 
+    @Test
+    void messageExtractor_shouldSpreadIdsEvenlyOverNonNegativeShards() {
+        int numberOfShards = 100;
+        int[] counts = new int[numberOfShards];
+        ShardRegion.MessageExtractor extractor = LoyaltyActorSupervisor.messageExtractor(numberOfShards);
+
+        for(int i = 0; i < 100000; i++) {
+            LoyaltyActorSupervisor.Deliver deliver = new LoyaltyActorSupervisor.Deliver(
+                new LoyaltyActor.GetLoyaltyInformation(),
+                new LoyaltyId(UUID.randomUUID().toString())
+            );
+
+            counts[Integer.parseInt(extractor.shardId(deliver))]++;
+        }
+
+        for(int count : counts) {
+            assertTrue(count > 800 && count < 1200, "Uneven shard size " + count);
+        }
+    }
+
+    @Test
+    void shardOf_shouldBeStableForAnId() {
+        LoyaltyId id = new LoyaltyId("Id");
+
+        assertEquals(
+            LoyaltyActorSupervisor.shardOf(id, 30),
+            LoyaltyActorSupervisor.shardOf(new LoyaltyId("Id"), 30)
+        );
+    }
+
+    @Test
+    void describeShardSpread_shouldReportTheUnevenness() {
+        assertEquals(
+            "100 shards over 10 nodes gives 10 to 10 shards per node, so the busiest node carries up to 0% more than an even share",
+            LoyaltyActorSupervisor.describeShardSpread(100, 10)
+        );
+        assertEquals(
+            "30 shards over 4 nodes gives 7 to 8 shards per node, so the busiest node carries up to 7% more than an even share",
+            LoyaltyActorSupervisor.describeShardSpread(30, 4)
+        );
+    }
+
+    @Test
+    void deliver_shouldPassivateTheLeastRecentlyUsedActor() {
+        ActorSystem boundedSystem = ActorSystem.create("bounded", ConfigFactory
+            .parseString("loyalty.passivation.max-active-entities = 1")
+            .withFallback(ConfigFactory.load()));
+
+        try {
+            LoyaltyRepository loyaltyRepository =
+                new InMemoryLoyaltyRepository(Executors.newSingleThreadExecutor());
+            ActorRef boundedSupervisor = boundedSystem.actorOf(LoyaltyActorSupervisor.create(loyaltyRepository));
+            TestKit probe = new TestKit(boundedSystem);
+
+            boundedSupervisor.tell(new LoyaltyActorSupervisor.Deliver(
+                new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)),
+                new LoyaltyId("first")
+            ), probe.getRef());
+            probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class);
+
+            ActorRef first = boundedSystem.actorSelection(boundedSupervisor.path().child("first"))
+                .resolveOne(timeout)
+                .toCompletableFuture()
+                .join();
+            probe.watch(first);
+
+            boundedSupervisor.tell(new LoyaltyActorSupervisor.Deliver(
+                new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(5)),
+                new LoyaltyId("second")
+            ), ActorRef.noSender());
+            probe.expectTerminated(first);
+
+            boundedSupervisor.tell(new LoyaltyActorSupervisor.Deliver(
+                new LoyaltyActor.GetLoyaltyInformation(),
+                new LoyaltyId("first")
+            ), probe.getRef());
+
+            assertEquals(10, probe.expectMsgClass(LoyaltyInformation.class).getCurrentTotal());
+        } finally {
+            TestKit.shutdownActorSystem(boundedSystem);
+        }
+    }
+
+    @Test
+    void passivate_shouldStopTheActorAndRecreateItOnDemand() {
+        ActorSystem idleSystem = ActorSystem.create("idle", ConfigFactory
+            .parseString("loyalty.passivation.idle-timeout = 100ms")
+            .withFallback(ConfigFactory.load()));
+
+        try {
+            LoyaltyRepository loyaltyRepository =
+                new InMemoryLoyaltyRepository(Executors.newSingleThreadExecutor());
+            ActorRef idleSupervisor = idleSystem.actorOf(LoyaltyActorSupervisor.create(loyaltyRepository));
+            TestKit probe = new TestKit(idleSystem);
+
+            idleSupervisor.tell(new LoyaltyActorSupervisor.Deliver(
+                new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)),
+                new LoyaltyId("Id")
+            ), probe.getRef());
+            probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class);
+
+            ActorRef actor = idleSystem.actorSelection(idleSupervisor.path().child("Id"))
+                .resolveOne(timeout)
+                .toCompletableFuture()
+                .join();
+            probe.watch(actor);
+            probe.expectTerminated(actor);
+
+            idleSupervisor.tell(new LoyaltyActorSupervisor.Deliver(
+                new LoyaltyActor.GetLoyaltyInformation(),
+                new LoyaltyId("Id")
+            ), probe.getRef());
+
+            assertEquals(10, probe.expectMsgClass(LoyaltyInformation.class).getCurrentTotal());
+        } finally {
+            TestKit.shutdownActorSystem(idleSystem);
+        }
+    }
 }
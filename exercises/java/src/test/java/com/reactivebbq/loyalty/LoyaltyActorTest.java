@@ -2,17 +2,29 @@ package com.reactivebbq.loyalty;
 
 import akka.Done;
 import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Status;
+import akka.cluster.sharding.ShardRegion;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 
 import static akka.pattern.Patterns.ask;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -28,11 +40,36 @@ class LoyaltyActorTest extends AkkaTest {
         }
 
         @Override
-        public CompletableFuture<LoyaltyInformation> findLoyalty(LoyaltyId loyaltyId) {
-            CompletableFuture<LoyaltyInformation> future = new CompletableFuture<>();
-            future.completeExceptionally(new Exception("Bam"));
+        public CompletableFuture<Optional<LoyaltyInformation>> findLoyalty(LoyaltyId loyaltyId) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+    }
+
+    class ControlledLoyaltyRepository implements LoyaltyRepository {
+        final List<CompletableFuture<Done>> writes = new CopyOnWriteArrayList<>();
+        final AtomicInteger failedLoads = new AtomicInteger();
+        final AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<Optional<LoyaltyInformation>> loaded = CompletableFuture.completedFuture(Optional.empty());
+
+        @Override
+        public CompletableFuture<Done> updateLoyalty(LoyaltyId loyaltyId, LoyaltyInformation loyaltyInformation) {
+            CompletableFuture<Done> future = new CompletableFuture<>();
+            writes.add(future);
             return future;
         }
+
+        @Override
+        public CompletableFuture<Optional<LoyaltyInformation>> findLoyalty(LoyaltyId loyaltyId) {
+            loads.incrementAndGet();
+
+            if(failedLoads.getAndDecrement() > 0) {
+                CompletableFuture<Optional<LoyaltyInformation>> future = new CompletableFuture<>();
+                future.completeExceptionally(new IOException("Bam"));
+                return future;
+            }
+
+            return loaded;
+        }
     }
 
     private LoyaltyId loyaltyId;
@@ -80,6 +117,20 @@ class LoyaltyActorTest extends AkkaTest {
         assertEquals(state.getCurrentTotal(), result.getCurrentTotal());
     }
 
+    @Test
+    void theActor_shouldRetryAFailedLoadRatherThanStartEmpty() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        repository.failedLoads.set(2);
+        repository.loaded = CompletableFuture.completedFuture(Optional.of(LoyaltyInformation.empty.applyAdjustment(new Award(10))));
+
+        LoyaltyActor.LoyaltyBalance result = (LoyaltyActor.LoyaltyBalance) ask(system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue()), new LoyaltyActor.GetLoyaltyBalance(), timeout)
+                .toCompletableFuture()
+                .join();
+
+        assertEquals(10, result.getCurrentTotal());
+        assertTrue(repository.writes.isEmpty());
+    }
+
     @Test
     void applyLoyaltyAdjustment_shouldReturnACorrespondingEvent() {
         LoyaltyActor.LoyaltyAdjustmentApplied result = (LoyaltyActor.LoyaltyAdjustmentApplied) ask(loyaltyActor.get(), new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), timeout)
@@ -87,6 +138,8 @@ class LoyaltyActorTest extends AkkaTest {
                 .join();
 
         assertEquals(10, result.getAdjustment().getBalanceAdjustment());
+        assertEquals(10, result.getCurrentTotal());
+        assertEquals(1, result.getAdjustmentCount());
     }
 
     @Test
@@ -106,7 +159,7 @@ class LoyaltyActorTest extends AkkaTest {
             .toCompletableFuture()
             .join();
 
-        LoyaltyInformation result = loyaltyRepository.findLoyalty(loyaltyId).join();
+        LoyaltyInformation result = loyaltyRepository.findLoyalty(loyaltyId).join().get();
 
         assertEquals(10, result.getCurrentTotal());
     }
@@ -143,6 +196,35 @@ class LoyaltyActorTest extends AkkaTest {
         );
     }
 
+    @Test
+    void withDeadline_shouldDropACommandWhoseDeadlineHasPassed() {
+        TestKit probe = new TestKit(system);
+
+        loyaltyActor.get().tell(new LoyaltyActor.WithDeadline(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), Duration.ofSeconds(-1)), probe.getRef());
+        loyaltyActor.get().tell(new LoyaltyActor.WithDeadline(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(20)), Duration.ofMinutes(1)), probe.getRef());
+
+        assertEquals(20, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class).getAdjustment().getPoints());
+        probe.expectNoMessage(Duration.ofMillis(100));
+        assertEquals(20, loyaltyRepository.findLoyalty(loyaltyId).join().get().getCurrentTotal());
+    }
+
+    @Test
+    void withDeadline_shouldDropACommandThatExpiresWhileStashed() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        repository.loaded = new CompletableFuture<>();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository));
+        TestKit probe = new TestKit(system);
+
+        actor.tell(new LoyaltyActor.WithDeadline(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), Duration.ofMillis(100)), probe.getRef());
+        actor.tell(new LoyaltyActor.WithDeadline(new LoyaltyActor.GetLoyaltyBalance(), Duration.ofMinutes(1)), probe.getRef());
+        probe.expectNoMessage(Duration.ofMillis(200));
+
+        repository.loaded.complete(Optional.empty());
+
+        assertEquals(0, probe.expectMsgClass(LoyaltyActor.LoyaltyBalance.class).getCurrentTotal());
+        assertTrue(repository.writes.isEmpty());
+    }
+
     @Test
     void getLoyaltyInformation_shouldReturnEmptyIfNoAdjustmentsHaveBeenApplied() {
         LoyaltyInformation result = (LoyaltyInformation) ask(loyaltyActor.get(), new LoyaltyActor.GetLoyaltyInformation(), timeout)
@@ -164,4 +246,312 @@ class LoyaltyActorTest extends AkkaTest {
        assertEquals(1, result.getAdjustments().size());
        assertEquals(10, result.getCurrentTotal());
     }
+
+    @Test
+    void getLoyaltyBalance_shouldReturnOnlyTheTotalAndCount() {
+        loyaltyActor.get().tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), ActorRef.noSender());
+        loyaltyActor.get().tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Deduct(4)), ActorRef.noSender());
+
+        LoyaltyActor.LoyaltyBalance result = (LoyaltyActor.LoyaltyBalance) ask(loyaltyActor.get(), new LoyaltyActor.GetLoyaltyBalance(), timeout)
+            .toCompletableFuture()
+            .join();
+
+        assertEquals(6, result.getCurrentTotal());
+        assertEquals(2, result.getAdjustmentCount());
+    }
+
+    @Test
+    void getLoyaltyHistory_shouldReturnAPageMostRecentFirst() {
+        LoyaltyInformation state = LoyaltyInformation.fromSnapshot(
+            2, 100, new int[] { 10, 20, 30, 40 }, 4
+        );
+
+        loyaltyRepository = new InMemoryLoyaltyRepository(Executors.newSingleThreadExecutor()) {
+            @Override
+            public CompletableFuture<int[]> findBalanceAdjustments(LoyaltyId loyaltyId, int from, int to) {
+                return CompletableFuture.completedFuture(Arrays.copyOfRange(new int[] { 40, 60 }, from, to));
+            }
+        };
+        loyaltyRepository.updateLoyalty(loyaltyId, state).join();
+
+        LoyaltyActor.LoyaltyHistory page = (LoyaltyActor.LoyaltyHistory) ask(loyaltyActor.get(), new LoyaltyActor.GetLoyaltyHistory(1, 2), timeout)
+            .toCompletableFuture()
+            .join();
+
+        assertEquals(200, page.getCurrentTotal());
+        assertEquals(6, page.getAdjustmentCount());
+        assertArrayEquals(new int[] { 30, 20 }, page.getBalanceAdjustments());
+
+        LoyaltyActor.LoyaltyHistory last = (LoyaltyActor.LoyaltyHistory) ask(loyaltyActor.get(), new LoyaltyActor.GetLoyaltyHistory(3, 10), timeout)
+            .toCompletableFuture()
+            .join();
+
+        assertArrayEquals(new int[] { 10, 60, 40 }, last.getBalanceAdjustments());
+
+        LoyaltyActor.LoyaltyHistory beyond = (LoyaltyActor.LoyaltyHistory) ask(loyaltyActor.get(), new LoyaltyActor.GetLoyaltyHistory(10, 10), timeout)
+            .toCompletableFuture()
+            .join();
+
+        assertEquals(0, beyond.getBalanceAdjustments().length);
+
+        LoyaltyInformation full = (LoyaltyInformation) ask(loyaltyActor.get(), new LoyaltyActor.GetLoyaltyInformation(), timeout)
+            .toCompletableFuture()
+            .join();
+
+        assertEquals(0, full.getHistoryOffset());
+        assertEquals(200, full.getCurrentTotal());
+        assertEquals(6, full.getAdjustments().size());
+        assertEquals(60, full.getBalanceAdjustment(1));
+    }
+
+    @Test
+    void applyLoyaltyAdjustment_shouldPipelineWritesAndReplyInOrder() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(20)), probe.getRef());
+
+        probe.awaitCond(() -> repository.writes.size() == 2);
+        repository.writes.get(1).complete(Done.getInstance());
+
+        assertEquals(10, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class).getAdjustment().getPoints());
+        assertEquals(20, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class).getAdjustment().getPoints());
+
+        repository.writes.get(0).complete(Done.getInstance());
+        probe.expectNoMessage();
+    }
+
+    @Test
+    void applyLoyaltyAdjustment_shouldHoldBackAFailedWriteUntilLaterWritesComplete() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(20)), probe.getRef());
+
+        probe.awaitCond(() -> repository.writes.size() == 2);
+        repository.writes.get(0).completeExceptionally(new Exception("Boom"));
+        probe.expectNoMessage();
+
+        repository.writes.get(1).complete(Done.getInstance());
+
+        assertEquals(10, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class).getAdjustment().getPoints());
+        assertEquals(20, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class).getAdjustment().getPoints());
+    }
+
+    @Test
+    void applyLoyaltyAdjustment_shouldLimitTheWritesInFlight() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+        int maxWritesInFlight = system.settings().config().getInt("loyalty.actor.max-writes-in-flight");
+
+        for(int i = 0; i <= maxWritesInFlight; i++) {
+            actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+        }
+
+        probe.awaitCond(() -> repository.writes.size() == maxWritesInFlight);
+        probe.expectNoMessage();
+        assertEquals(maxWritesInFlight, repository.writes.size());
+
+        repository.writes.get(0).complete(Done.getInstance());
+        probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class);
+        probe.awaitCond(() -> repository.writes.size() == maxWritesInFlight + 1);
+    }
+
+    @Test
+    void applyLoyaltyAdjustment_shouldCoalesceAdjustmentsIntoASingleWrite() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+        int maxWritesInFlight = system.settings().config().getInt("loyalty.actor.max-writes-in-flight");
+
+        for(int i = 1; i <= maxWritesInFlight + 5; i++) {
+            actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(i)), probe.getRef());
+        }
+
+        probe.awaitCond(() -> repository.writes.size() == maxWritesInFlight);
+        repository.writes.forEach(write -> write.complete(Done.getInstance()));
+
+        probe.awaitCond(() -> repository.writes.size() == maxWritesInFlight + 1);
+        repository.writes.get(maxWritesInFlight).complete(Done.getInstance());
+
+        for(int i = 1; i <= maxWritesInFlight + 5; i++) {
+            assertEquals(i, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class).getAdjustment().getPoints());
+        }
+
+        assertEquals(maxWritesInFlight + 1, repository.writes.size());
+    }
+
+    @Test
+    void theActor_shouldAskToBePassivatedWhenIdle() {
+        ActorSystem idleSystem = ActorSystem.create("idle", ConfigFactory
+            .parseString("loyalty.passivation.idle-timeout = 100ms")
+            .withFallback(ConfigFactory.load()));
+
+        try {
+            TestKit parent = new TestKit(idleSystem);
+            ActorRef actor = parent.childActorOf(LoyaltyActor.create(loyaltyRepository), loyaltyId.getValue());
+            parent.watch(actor);
+
+            ShardRegion.Passivate passivate = parent.expectMsgClass(ShardRegion.Passivate.class);
+            actor.tell(passivate.stopMessage(), parent.getRef());
+
+            parent.expectTerminated(actor);
+        } finally {
+            TestKit.shutdownActorSystem(idleSystem);
+        }
+    }
+
+    @Test
+    void theActor_shouldNotHoldAnIdleTimeoutThatPassesWhileLoading() {
+        ActorSystem idleSystem = ActorSystem.create("idle", ConfigFactory
+            .parseString("loyalty.passivation.idle-timeout = 500ms")
+            .withFallback(ConfigFactory.load()));
+
+        try {
+            ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+            repository.loaded = new CompletableFuture<>();
+            TestKit parent = new TestKit(idleSystem);
+            TestKit probe = new TestKit(idleSystem);
+            ActorRef actor = parent.childActorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+
+            parent.expectNoMessage(Duration.ofMillis(700));
+            repository.loaded.complete(Optional.empty());
+            actor.tell(new LoyaltyActor.GetLoyaltyBalance(), probe.getRef());
+
+            probe.expectMsgClass(LoyaltyActor.LoyaltyBalance.class);
+            parent.expectNoMessage(Duration.ofMillis(200));
+            parent.expectMsgClass(ShardRegion.Passivate.class);
+        } finally {
+            TestKit.shutdownActorSystem(idleSystem);
+        }
+    }
+
+    @Test
+    void theActor_shouldRejectCommandsPastTheStashCapacityWhileLoading() {
+        ActorSystem loadingSystem = ActorSystem.create("loading", ConfigFactory
+            .parseString("loyalty.actor.stash-capacity = 2")
+            .withFallback(ConfigFactory.load()));
+
+        try {
+            ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+            repository.loaded = new CompletableFuture<>();
+            ActorRef actor = loadingSystem.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+            TestKit probe = new TestKit(loadingSystem);
+
+            for(int i = 1; i <= 3; i++) {
+                actor.tell(new LoyaltyActor.GetLoyaltyBalance(), probe.getRef());
+            }
+            actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+
+            probe.expectMsgClass(LoyaltyActor.AccountUnavailable.class);
+            assertTrue(probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentRejected.class).isRetryable());
+
+            repository.loaded.complete(Optional.empty());
+
+            probe.expectMsgClass(LoyaltyActor.LoyaltyBalance.class);
+            probe.expectMsgClass(LoyaltyActor.LoyaltyBalance.class);
+        } finally {
+            TestKit.shutdownActorSystem(loadingSystem);
+        }
+    }
+
+    @Test
+    void theActor_shouldFailWithoutRetryingTheLoadIfTheAccountIsCorrupt() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        repository.loaded = CompletableFuture.failedFuture(new CorruptLoyaltyInformationException("Bam"));
+        TestKit parent = new TestKit(system);
+        TestKit probe = new TestKit(system);
+        ActorRef actor = parent.childActorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        parent.watch(actor);
+
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+        actor.tell(new LoyaltyActor.GetLoyaltyBalance(), probe.getRef());
+
+        assertTrue(probe.expectMsgClass(Status.Failure.class).cause() instanceof CorruptLoyaltyInformationException);
+        assertTrue(probe.expectMsgClass(Status.Failure.class).cause() instanceof CorruptLoyaltyInformationException);
+
+        ShardRegion.Passivate passivate = parent.expectMsgClass(ShardRegion.Passivate.class);
+        probe.expectNoMessage(Duration.ofMillis(300));
+        actor.tell(passivate.stopMessage(), parent.getRef());
+
+        parent.expectTerminated(actor);
+        assertEquals(1, repository.loads.get());
+        assertTrue(repository.writes.isEmpty());
+    }
+
+    @Test
+    void theActor_shouldRejectWhatItHoldsAndAskToStopIfLoadingTimesOut() {
+        ActorSystem loadingSystem = ActorSystem.create("loading", ConfigFactory
+            .parseString("loyalty.actor.recovery-timeout = 100ms")
+            .withFallback(ConfigFactory.load()));
+
+        try {
+            ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+            repository.loaded = new CompletableFuture<>();
+            TestKit parent = new TestKit(loadingSystem);
+            TestKit probe = new TestKit(loadingSystem);
+            ActorRef actor = parent.childActorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+            parent.watch(actor);
+
+            actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+
+            assertEquals(LoyaltyActor.ACCOUNT_UNAVAILABLE, probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentRejected.class).getReason());
+
+            ShardRegion.Passivate passivate = parent.expectMsgClass(ShardRegion.Passivate.class);
+            actor.tell(passivate.stopMessage(), parent.getRef());
+
+            parent.expectTerminated(actor);
+            assertTrue(repository.writes.isEmpty());
+        } finally {
+            TestKit.shutdownActorSystem(loadingSystem);
+        }
+    }
+
+    @Test
+    void stop_shouldFlushPendingWritesBeforeStopping() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+        probe.watch(actor);
+
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+        actor.tell(new LoyaltyActor.Stop(), probe.getRef());
+
+        probe.awaitCond(() -> repository.writes.size() == 1);
+        probe.expectNoMessage();
+
+        repository.writes.get(0).complete(Done.getInstance());
+
+        probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentApplied.class);
+        probe.expectTerminated(actor);
+    }
+
+    @Test
+    void applyLoyaltyAdjustments_shouldApplyTheBatchWithASingleWrite() {
+        ControlledLoyaltyRepository repository = new ControlledLoyaltyRepository();
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustments(List.of(
+            new Award(10),
+            new Deduct(15),
+            new Deduct(5)
+        )), probe.getRef());
+
+        probe.awaitCond(() -> repository.writes.size() == 1);
+        repository.writes.get(0).complete(Done.getInstance());
+
+        List<LoyaltyActor.Event> results = probe.expectMsgClass(LoyaltyActor.LoyaltyAdjustmentsProcessed.class).getResults();
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0) instanceof LoyaltyActor.LoyaltyAdjustmentApplied);
+        assertTrue(results.get(1) instanceof LoyaltyActor.LoyaltyAdjustmentRejected);
+        assertTrue(results.get(2) instanceof LoyaltyActor.LoyaltyAdjustmentApplied);
+        assertEquals(1, repository.writes.size());
+    }
 }
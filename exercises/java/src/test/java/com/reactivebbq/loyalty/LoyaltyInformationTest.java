@@ -1,8 +1,15 @@
 package com.reactivebbq.loyalty;
 
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import akka.testkit.javadsl.TestKit;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class LoyaltyInformationTest {
 
@@ -62,4 +69,72 @@ class LoyaltyInformationTest {
         assertEquals(30, loyaltyInformation.getAdjustments().get(2).getBalanceAdjustment());
     }
 
+    @Test
+    void applyAdjustment_shouldNotAffectPreviousVersions() {
+        LoyaltyInformation base = LoyaltyInformation.empty
+                .applyAdjustment(new Award(10))
+                .applyAdjustment(new Award(20));
+
+        LoyaltyInformation first = base.applyAdjustment(new Deduct(5));
+        LoyaltyInformation second = base.applyAdjustment(new Award(30));
+
+        assertEquals(2, base.getAdjustments().size());
+        assertEquals(30, base.getCurrentTotal());
+        assertEquals(-5, first.getAdjustments().get(2).getBalanceAdjustment());
+        assertEquals(25, first.getCurrentTotal());
+        assertEquals(30, second.getAdjustments().get(2).getBalanceAdjustment());
+        assertEquals(60, second.getCurrentTotal());
+    }
+
+    @Test
+    void applyAdjustment_shouldRetainTheFullHistoryOfLongAccounts() {
+        LoyaltyInformation loyaltyInformation = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 1000; i++) {
+            loyaltyInformation = loyaltyInformation.applyAdjustment(new Award(i));
+        }
+
+        assertEquals(1000, loyaltyInformation.getAdjustments().size());
+        assertEquals(500500, loyaltyInformation.getCurrentTotal());
+
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(i + 1, loyaltyInformation.getAdjustments().get(i).getPoints());
+        }
+    }
+
+    @Test
+    void fromBalanceAdjustments_shouldExposeAwardsAndDeducts() {
+        LoyaltyInformation loyaltyInformation = LoyaltyInformation
+                .fromBalanceAdjustments(new int[] { 10, -4, 7 }, 3);
+
+        assertEquals(13, loyaltyInformation.getCurrentTotal());
+        assertTrue(loyaltyInformation.getAdjustments().get(0) instanceof Award);
+        assertTrue(loyaltyInformation.getAdjustments().get(1) instanceof Deduct);
+        assertEquals(4, loyaltyInformation.getAdjustments().get(1).getPoints());
+        assertEquals(7, loyaltyInformation.getBalanceAdjustment(2));
+    }
+
+    @Test
+    void currentTotal_shouldSurviveSerialization() {
+        ActorSystem system = ActorSystem.create();
+
+        try {
+            Serialization serialization = SerializationExtension.get(system);
+            LoyaltyInformation loyalty = LoyaltyInformation.empty
+                    .applyAdjustment(new Award(100))
+                    .applyAdjustment(new Deduct(40));
+
+            Serializer serializer = serialization.findSerializerFor(loyalty);
+            byte[] bytes = serialization.serialize(loyalty).get();
+            LoyaltyInformation result = (LoyaltyInformation) serialization
+                    .deserialize(bytes, serializer.identifier(), Serializers.manifestFor(serializer, loyalty))
+                    .get();
+
+            assertEquals(60, result.getCurrentTotal());
+            assertEquals(2, result.getAdjustmentCount());
+        } finally {
+            TestKit.shutdownActorSystem(system);
+        }
+    }
+
 }
@@ -0,0 +1,26 @@
+package com.reactivebbq.loyalty;
+
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LoyaltyMarshallersTest {
+
+    private String putInt(int value) {
+        ByteStringBuilder out = ByteString.createBuilder();
+        LoyaltyMarshallers.putInt(out, value);
+        return out.result().utf8String();
+    }
+
+    @Test
+    void putInt_shouldWriteTheDecimalDigits() {
+        assertEquals("0", putInt(0));
+        assertEquals("7", putInt(7));
+        assertEquals("10", putInt(10));
+        assertEquals("-305", putInt(-305));
+        assertEquals(String.valueOf(Integer.MAX_VALUE), putInt(Integer.MAX_VALUE));
+        assertEquals(String.valueOf(Integer.MIN_VALUE), putInt(Integer.MIN_VALUE));
+    }
+}
@@ -1,5 +1,6 @@
 package com.reactivebbq.loyalty;
 
+import akka.Done;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -7,13 +8,23 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 abstract class LoyaltyRepositoryTest {
     abstract LoyaltyRepository getLoyaltyRepository();
@@ -22,11 +33,54 @@ abstract class LoyaltyRepositoryTest {
         return new LoyaltyId(UUID.randomUUID().toString());
     }
 
+    static int[] balanceAdjustments(LoyaltyInformation info) {
+        IntStream.Builder builder = IntStream.builder();
+        info.forEachBalanceAdjustment(builder);
+        return builder.build().toArray();
+    }
+
+    static final List<String> corruptFiles = List.of(
+        "10,not a number",
+        "10,",
+        ",10",
+        "10,,20",
+        "-",
+        "10,--5",
+        "2147483648"
+    );
+
+    static void assertCorrupt(LoyaltyRepository repository, Path rootPath, String contents) throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        Files.write(rootPath.resolve(id.getValue()), contents.getBytes());
+
+        CompletionException ex = assertThrows(CompletionException.class, () ->
+            repository.findLoyalty(id).join()
+        );
+
+        assertTrue(ex.getCause() instanceof CorruptLoyaltyInformationException, contents);
+    }
+
+    static void assertReadsAnEmptyHistory(LoyaltyRepository repository) {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+
+        repository.updateLoyalty(id, LoyaltyInformation.empty).join();
+
+        assertEquals(0, repository.findLoyalty(id).join().get().getAdjustmentCount());
+    }
+
+    static void assertReadsTheIntRange(LoyaltyRepository repository, Path rootPath) throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        Files.write(rootPath.resolve(id.getValue()), "-2147483648,2147483647".getBytes());
+
+        assertArrayEquals(
+            new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE },
+            balanceAdjustments(repository.findLoyalty(id).join().get())
+        );
+    }
+
     @Test
     void findLoyalty_shouldReturnNothingIfTheIdDoesntExist() {
-        assertThrows(CompletionException.class, () ->
-            getLoyaltyRepository().findLoyalty(createLoyaltyId()).join()
-        );
+        assertFalse(getLoyaltyRepository().findLoyalty(createLoyaltyId()).join().isPresent());
     }
 
     @Test
@@ -38,7 +92,7 @@ abstract class LoyaltyRepositoryTest {
 
         getLoyaltyRepository().updateLoyalty(id, info).join();
 
-        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id).join();
+        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id).join().get();
 
         assertEquals(info.getCurrentTotal(), result.getCurrentTotal());
     }
@@ -58,7 +112,7 @@ abstract class LoyaltyRepositoryTest {
         getLoyaltyRepository().updateLoyalty(id1, info1).join();
         getLoyaltyRepository().updateLoyalty(id2, info2).join();
 
-        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id1).join();
+        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id1).join().get();
 
         assertEquals(info1.getCurrentTotal(), result.getCurrentTotal());
     }
@@ -77,15 +131,31 @@ abstract class LoyaltyRepositoryTest {
         getLoyaltyRepository().updateLoyalty(id, info1).join();
         getLoyaltyRepository().updateLoyalty(id, info2).join();
 
-        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id).join();
+        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id).join().get();
 
         assertEquals(info2.getCurrentTotal(), result.getCurrentTotal());
     }
 
+    @Test
+    void updateLoyalty_shouldIgnoreAnOlderHistory() {
+        LoyaltyId id  = createLoyaltyId();
+        LoyaltyInformation older = LoyaltyInformation.empty
+                .applyAdjustment(new Award(10));
+        LoyaltyInformation newer = older
+                .applyAdjustment(new Deduct(5));
+
+        getLoyaltyRepository().updateLoyalty(id, newer).join();
+        getLoyaltyRepository().updateLoyalty(id, older).join();
+
+        LoyaltyInformation result = getLoyaltyRepository().findLoyalty(id).join().get();
+
+        assertEquals(newer.getCurrentTotal(), result.getCurrentTotal());
+    }
+
 }
 
 class InMemoryLoyaltyRepositoryTest extends LoyaltyRepositoryTest {
-    private final LoyaltyRepository loyaltyRepository = new InMemoryLoyaltyRepository(Executors.newSingleThreadExecutor());
+    private final InMemoryLoyaltyRepository loyaltyRepository = new InMemoryLoyaltyRepository(Executors.newFixedThreadPool(8));
 
     @Override
     LoyaltyRepository getLoyaltyRepository() {
@@ -95,6 +165,45 @@ class InMemoryLoyaltyRepositoryTest extends LoyaltyRepositoryTest {
     InMemoryLoyaltyRepositoryTest() {
         super();
     }
+
+    @Test
+    void updateLoyalty_shouldKeepEveryConcurrentUpdate() {
+        List<LoyaltyId> ids = new ArrayList<>();
+        List<CompletableFuture<Done>> results = new ArrayList<>();
+
+        for(int i = 1; i <= 10000; i++) {
+            LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+            ids.add(id);
+            results.add(loyaltyRepository.updateLoyalty(id, LoyaltyInformation.empty.applyAdjustment(new Award(i))));
+        }
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+
+        assertEquals(10000, loyaltyRepository.size());
+
+        for(int i = 1; i <= 10000; i++) {
+            assertEquals(i, loyaltyRepository.findLoyalty(ids.get(i - 1)).join().get().getCurrentTotal());
+        }
+    }
+
+    @Test
+    void estimatedMemoryUsage_shouldGrowWithTheStoredAdjustments() {
+        InMemoryLoyaltyRepository repository = new InMemoryLoyaltyRepository(Executors.newSingleThreadExecutor());
+        LoyaltyId id = new LoyaltyId("account");
+        LoyaltyInformation info = LoyaltyInformation.empty
+                .applyAdjustment(new Award(10))
+                .applyAdjustment(new Deduct(5));
+
+        assertEquals(0, repository.estimatedMemoryUsage());
+
+        repository.updateLoyalty(id, info).join();
+
+        assertEquals(1, repository.size());
+        assertEquals(
+            InMemoryLoyaltyRepository.ESTIMATED_ENTRY_OVERHEAD + "account".length() + 2 * Integer.BYTES,
+            repository.estimatedMemoryUsage()
+        );
+    }
 }
 
 class FileBasedLoyaltyRepositoryTest extends LoyaltyRepositoryTest {
@@ -122,10 +231,406 @@ class FileBasedLoyaltyRepositoryTest extends LoyaltyRepositoryTest {
 
         Files.deleteIfExists(tmpDir);
     }
+
+    @Test
+    void findLoyalty_shouldFailRatherThanReturnNothingIfTheFileCantBeRead() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        Files.write(tmpDir.resolve(id.getValue()), "10,not a number".getBytes());
+
+        assertThrows(CompletionException.class, () ->
+            loyaltyRepository.findLoyalty(id).join()
+        );
+    }
+
+    @Test
+    void findLoyalty_shouldReportContentsThatCantBeDecodedAsCorrupt() throws IOException {
+        for(String contents : corruptFiles) {
+            assertCorrupt(loyaltyRepository, tmpDir, contents);
+        }
+
+        assertReadsTheIntRange(loyaltyRepository, tmpDir);
+    }
+
+    @Test
+    void findLoyalty_shouldReadAnEmptyHistoryAsAnAccount() {
+        assertReadsAnEmptyHistory(loyaltyRepository);
+    }
+
+    @Test
+    void updateLoyalty_shouldReplaceTheFileWithoutLeavingATemporaryOne() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+
+        loyaltyRepository.updateLoyalty(id, LoyaltyInformation.empty.applyAdjustment(new Award(10))).join();
+        loyaltyRepository.updateLoyalty(id, LoyaltyInformation.empty.applyAdjustment(new Award(10)).applyAdjustment(new Award(5))).join();
+
+        assertEquals(15, loyaltyRepository.findLoyalty(id).join().get().getCurrentTotal());
+
+        try(Stream<Path> files = Files.list(tmpDir)) {
+            assertFalse(files.anyMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+}
+
+class MappedFileBasedLoyaltyRepositoryTest extends LoyaltyRepositoryTest {
+    private static Path tmpDir;
+    private static LoyaltyRepository loyaltyRepository;
+
+    @Override
+    LoyaltyRepository getLoyaltyRepository() {
+        return loyaltyRepository;
+    }
+
+    @BeforeAll
+    static void setup() throws IOException {
+        tmpDir = Files.createTempDirectory("mappedfilebasedrepotest");
+        loyaltyRepository = new FileBasedLoyaltyRepository(tmpDir, ReadMode.MAPPED, Executors.newSingleThreadExecutor());
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        Files.walk(tmpDir).forEach(file -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {}
+        });
+
+        Files.deleteIfExists(tmpDir);
+    }
+
+    @Test
+    void findLoyalty_shouldDecodeAwardsAndDeducts() {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation info = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 40; i++) {
+            info = info.applyAdjustment(i % 3 == 0 ? new Deduct(i * 7) : new Award(i * 11));
+        }
+
+        loyaltyRepository.updateLoyalty(id, info).join();
+
+        LoyaltyInformation result = loyaltyRepository.findLoyalty(id).join().get();
+
+        assertArrayEquals(balanceAdjustments(info), balanceAdjustments(result));
+        assertEquals(info.getCurrentTotal(), result.getCurrentTotal());
+    }
+
+    @Test
+    void findLoyalty_shouldReportContentsThatCantBeDecodedAsCorrupt() throws IOException {
+        for(String contents : corruptFiles) {
+            assertCorrupt(loyaltyRepository, tmpDir, contents);
+        }
+
+        assertReadsTheIntRange(loyaltyRepository, tmpDir);
+    }
+
+    @Test
+    void findLoyalty_shouldReadAnEmptyHistoryAsAnAccount() {
+        assertReadsAnEmptyHistory(loyaltyRepository);
+    }
 }
 
+class JournalLoyaltyRepositoryTest extends LoyaltyRepositoryTest {
+    private static final long segmentSize = 4 * JournalLoyaltyRepository.RECORD_SIZE;
+    private static final int snapshotInterval = 4;
 
+    private static Path tmpDir;
+    private static JournalLoyaltyRepository loyaltyRepository;
 
+    @Override
+    LoyaltyRepository getLoyaltyRepository() {
+        return loyaltyRepository;
+    }
 
+    @BeforeAll
+    static void setup() throws IOException {
+        tmpDir = Files.createTempDirectory("journalrepotest");
+        loyaltyRepository = createRepository();
+    }
 
+    private static JournalLoyaltyRepository createRepository() throws IOException {
+        return createRepository(tmpDir, ReadMode.STANDARD);
+    }
 
+    // Only one repository may have a journal directory open at a time.
+    private static JournalLoyaltyRepository reopen(ReadMode readMode) throws IOException {
+        loyaltyRepository.close();
+        loyaltyRepository = createRepository(tmpDir, readMode);
+        return loyaltyRepository;
+    }
+
+    private static JournalLoyaltyRepository createRepository(Path rootPath, ReadMode readMode) throws IOException {
+        return new JournalLoyaltyRepository(
+            rootPath,
+            segmentSize,
+            JournalLoyaltyRepository.DEFAULT_MAX_BATCH_SIZE,
+            JournalLoyaltyRepository.DEFAULT_MAX_BATCH_DELAY,
+            snapshotInterval,
+            readMode,
+            Executors.newSingleThreadExecutor()
+        );
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        loyaltyRepository.close();
+
+        Files.walk(tmpDir).sorted(Comparator.reverseOrder()).forEach(file -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {}
+        });
+    }
+
+    @Test
+    void updateLoyalty_shouldOnlyAppendTheNewAdjustments() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation info1 = LoyaltyInformation.empty
+                .applyAdjustment(new Award(10));
+        LoyaltyInformation info2 = info1
+                .applyAdjustment(new Deduct(5));
+
+        loyaltyRepository.updateLoyalty(id, info1).join();
+        long sizeBefore = journalSize();
+        loyaltyRepository.updateLoyalty(id, info2).join();
+
+        assertEquals(JournalLoyaltyRepository.RECORD_SIZE, journalSize() - sizeBefore);
+        assertEquals(5, loyaltyRepository.findLoyalty(id).join().get().getCurrentTotal());
+    }
+
+    @Test
+    void updateLoyalty_shouldFailOnceTheJournalIsClosed() throws IOException {
+        JournalLoyaltyRepository closed = new JournalLoyaltyRepository(
+            Files.createTempDirectory(tmpDir, "closed"),
+            Executors.newSingleThreadExecutor()
+        );
+
+        closed.close();
+
+        assertThrows(CompletionException.class, () ->
+            closed.updateLoyalty(new LoyaltyId("account"), LoyaltyInformation.empty.applyAdjustment(new Award(1))).join()
+        );
+    }
+
+    @Test
+    void findLoyalty_shouldRecoverTheJournalAfterARestart() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation info = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 10; i++) {
+            info = info.applyAdjustment(new Award(i));
+            loyaltyRepository.updateLoyalty(id, info).join();
+        }
+
+        LoyaltyInformation result = reopen(ReadMode.STANDARD).findLoyalty(id).join().get();
+
+        assertEquals(info.getCurrentTotal(), result.getCurrentTotal());
+        assertEquals(10, result.getAdjustmentCount());
+    }
+
+    @Test
+    void findLoyalty_shouldKeepTheHistoryBeforeAZeroAdjustmentAfterARestart() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+
+        loyaltyRepository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 10, 0, 5 }, 3)).join();
+
+        LoyaltyInformation result = reopen(ReadMode.STANDARD).findLoyalty(id).join().get();
+
+        assertArrayEquals(new int[] { 10, 0, 5 }, balanceAdjustments(result));
+        assertEquals(15, result.getCurrentTotal());
+    }
+
+    @Test
+    void findLoyalty_shouldRecoverAResetHistoryAfterARestart() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+
+        loyaltyRepository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 10, 20 }, 2)).join();
+        loyaltyRepository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 7, -3 }, 2)).join();
+
+        LoyaltyInformation result = reopen(ReadMode.STANDARD).findLoyalty(id).join().get();
+
+        assertArrayEquals(new int[] { 7, -3 }, balanceAdjustments(result));
+        assertEquals(4, result.getCurrentTotal());
+    }
+
+    @Test
+    void findLoyalty_shouldReadSealedSegmentsThroughMemoryMaps() throws IOException {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation info = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 3; i++) {
+            info = info.applyAdjustment(new Deduct(i));
+            loyaltyRepository.updateLoyalty(id, info).join();
+            loyaltyRepository.updateLoyalty(
+                new LoyaltyId(UUID.randomUUID().toString()),
+                LoyaltyInformation.empty.applyAdjustment(new Award(i))
+            ).join();
+        }
+
+        LoyaltyInformation result = reopen(ReadMode.MAPPED).findLoyalty(id).join().get();
+
+        assertArrayEquals(balanceAdjustments(info), balanceAdjustments(result));
+        assertEquals(-6, result.getCurrentTotal());
+
+        reopen(ReadMode.STANDARD);
+    }
+
+    @Test
+    void findLoyalty_shouldOnlyReplayTheAdjustmentsAfterTheLatestSnapshot() {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation info = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 10; i++) {
+            info = info.applyAdjustment(new Award(i));
+            loyaltyRepository.updateLoyalty(id, info).join();
+        }
+
+        LoyaltyInformation result = loyaltyRepository.findLoyalty(id).join().get();
+
+        assertEquals(55, result.getCurrentTotal());
+        assertEquals(10, result.getAdjustmentCount());
+        assertEquals(8, result.getHistoryOffset());
+        assertEquals(2, result.getAdjustments().size());
+        assertEquals(10, result.getAdjustments().get(1).getPoints());
+    }
+
+    @Test
+    void findBalanceAdjustments_shouldReadTheAdjustmentsASnapshotCompacted() throws IOException {
+        Path rootPath = Files.createTempDirectory(tmpDir, "compacted");
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation replaced = LoyaltyInformation.empty;
+        LoyaltyInformation info = LoyaltyInformation.empty;
+
+        try(JournalLoyaltyRepository repository = createRepository(rootPath, ReadMode.STANDARD)) {
+            for(int i = 1; i <= 3; i++) {
+                replaced = replaced.applyAdjustment(new Award(i));
+                repository.updateLoyalty(id, replaced).join();
+            }
+
+            for(int i = 1; i <= 6; i++) {
+                info = info.applyAdjustment(new Award(i * 10));
+            }
+
+            repository.updateLoyalty(id, info).join();
+            info = info.applyAdjustment(new Award(70));
+            repository.updateLoyalty(id, info).join();
+
+            assertArrayEquals(new int[] { 20, 30, 40 }, repository.findBalanceAdjustments(id, 1, 4).join());
+        }
+
+        try(JournalLoyaltyRepository recovered = createRepository(rootPath, ReadMode.STANDARD)) {
+            LoyaltyInformation result = recovered.findLoyalty(id).join().get();
+
+            assertEquals(280, result.getCurrentTotal());
+            assertEquals(6, result.getHistoryOffset());
+            assertArrayEquals(new int[] { 10, 20, 30, 40, 50, 60 }, recovered.findBalanceAdjustments(id, 0, 6).join());
+            assertThrows(CompletionException.class, () -> recovered.findBalanceAdjustments(id, 0, 8).join());
+        }
+    }
+
+    @Test
+    void updateLoyalty_shouldAppendToARecoveredSnapshot() {
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyInformation info = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 8; i++) {
+            info = info.applyAdjustment(new Award(i));
+            loyaltyRepository.updateLoyalty(id, info).join();
+        }
+
+        LoyaltyInformation recovered = loyaltyRepository.findLoyalty(id).join().get()
+                .applyAdjustment(new Deduct(6));
+
+        loyaltyRepository.updateLoyalty(id, recovered).join();
+
+        LoyaltyInformation result = loyaltyRepository.findLoyalty(id).join().get();
+
+        assertEquals(30, result.getCurrentTotal());
+        assertEquals(9, result.getAdjustmentCount());
+    }
+
+    @Test
+    void updateLoyalty_shouldCommitConcurrentUpdatesTogether() throws IOException {
+        List<LoyaltyId> ids = new ArrayList<>();
+        List<CompletableFuture<Done>> results = new ArrayList<>();
+
+        try(JournalLoyaltyRepository repository = new JournalLoyaltyRepository(
+            Files.createTempDirectory(tmpDir, "batched"),
+            1024 * JournalLoyaltyRepository.RECORD_SIZE,
+            JournalLoyaltyRepository.DEFAULT_MAX_BATCH_SIZE,
+            Duration.ofMillis(50),
+            snapshotInterval,
+            ReadMode.STANDARD,
+            Executors.newSingleThreadExecutor()
+        )) {
+            for(int i = 1; i <= 100; i++) {
+                LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+                ids.add(id);
+                results.add(repository.updateLoyalty(id, LoyaltyInformation.empty.applyAdjustment(new Award(i))));
+            }
+
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+
+            assertTrue(repository.getCommits() < 100, "Commits: " + repository.getCommits());
+            assertEquals(repository.getCommits(), repository.getForces());
+
+            for(int i = 1; i <= 100; i++) {
+                assertEquals(i, repository.findLoyalty(ids.get(i - 1)).join().get().getCurrentTotal());
+            }
+        }
+    }
+
+    @Test
+    void updateLoyalty_shouldUndoABatchThatFailsPartWayThrough() throws IOException {
+        Path rootPath = Files.createTempDirectory(tmpDir, "failed");
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+
+        try(JournalLoyaltyRepository repository = createRepository(rootPath, ReadMode.STANDARD)) {
+            repository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 1, 2 }, 2)).join();
+
+            // The batch fills the rest of the first segment and then fails to
+            // open the second, which is in the way as a directory.
+            Files.createDirectory(rootPath.resolve("0000000001.journal"));
+
+            assertThrows(CompletionException.class, () ->
+                repository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 1, 2, 3, 4, 5 }, 5)).join()
+            );
+            assertEquals(2, repository.findLoyalty(id).join().get().getAdjustmentCount());
+
+            repository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 1, 2, 9 }, 3)).join();
+        }
+
+        try(JournalLoyaltyRepository recovered = createRepository(rootPath, ReadMode.STANDARD)) {
+            assertArrayEquals(new int[] { 1, 2, 9 }, balanceAdjustments(recovered.findLoyalty(id).join().get()));
+        }
+    }
+
+    @Test
+    void updateLoyalty_shouldFailFromThenOnIfAFailedBatchCantBeUndone() throws IOException {
+        Path rootPath = Files.createTempDirectory(tmpDir, "unrecoverable");
+        LoyaltyId id = new LoyaltyId(UUID.randomUUID().toString());
+
+        try(JournalLoyaltyRepository repository = createRepository(rootPath, ReadMode.STANDARD)) {
+            repository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 1, 2 }, 2)).join();
+
+            // Not empty, so the second segment can't be opened or removed.
+            Path blocked = Files.createDirectory(rootPath.resolve("0000000001.journal"));
+            Files.createFile(blocked.resolve("blocked"));
+
+            assertThrows(CompletionException.class, () ->
+                repository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 1, 2, 3, 4, 5 }, 5)).join()
+            );
+            assertThrows(CompletionException.class, () ->
+                repository.updateLoyalty(id, LoyaltyInformation.fromBalanceAdjustments(new int[] { 1, 2, 3 }, 3)).join()
+            );
+        }
+    }
+
+    private long journalSize() throws IOException {
+        try(Stream<Path> files = Files.list(tmpDir)) {
+            return files
+                .filter(file -> file.toString().endsWith(".journal"))
+                .mapToLong(file -> file.toFile().length())
+                .sum();
+        }
+    }
+}
@@ -2,16 +2,39 @@ package com.reactivebbq.loyalty;
 
 import akka.actor.ActorRef;
 import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpCharsets;
 import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.MediaRanges;
+import akka.http.javadsl.model.MediaTypes;
 import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.headers.Accept;
+import akka.http.javadsl.model.headers.RetryAfter;
+import akka.http.javadsl.server.Route;
 import akka.http.javadsl.testkit.JUnitRouteTest;
 import akka.http.javadsl.testkit.TestRoute;
+import akka.http.javadsl.testkit.TestRouteResult;
 import akka.testkit.TestActor;
 import akka.testkit.TestProbe;
+import akka.testkit.javadsl.TestKit;
+import com.lightbend.cinnamon.akka.CinnamonMetrics;
+import com.typesafe.config.ConfigFactory;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 class LoyaltyRoutesTest extends JUnitRouteTest {
 
     private TestProbe loyaltyActorSupervisor;
@@ -56,6 +79,232 @@ class LoyaltyRoutesTest extends JUnitRouteTest {
             .assertEntity(expectedResponse);
     }
 
+    @Test
+    void loyalty_id_shouldDeliverTheCommandWithADeadline() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyInformation(), new LoyaltyId("someId")),
+            LoyaltyInformation.empty
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId"))
+            .assertStatusCode(StatusCodes.OK);
+
+        LoyaltyActorSupervisor.Deliver deliver = loyaltyActorSupervisor.expectMsgClass(LoyaltyActorSupervisor.Deliver.class);
+
+        Duration timeLeft = deliver.getTimeLeft().get();
+
+        assertTrue(timeLeft.compareTo(LoyaltyRoutes.Timeouts.DEFAULT.getRead()) <= 0);
+        assertTrue(timeLeft.compareTo(LoyaltyRoutes.Timeouts.DEFAULT.getRead().minusSeconds(1)) > 0);
+        assertTrue(deliver.getEntityMessage() instanceof LoyaltyActor.WithDeadline);
+    }
+
+    @Test
+    void loyalty_id_shouldStreamALongHistoryInChunks() {
+        int count = LoyaltyMarshallers.HISTORY_CHUNK_SIZE * 2 + 1;
+        int[] adjustments = new int[count];
+        StringBuilder expectedResponse = new StringBuilder("Current Balance: " + count + "\nHistory:\n");
+
+        for(int i = 0; i < count; i++) {
+            adjustments[i] = 1;
+            expectedResponse.append("- Award 1\n");
+        }
+
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyInformation(), new LoyaltyId("someId")),
+            LoyaltyInformation.fromBalanceAdjustments(adjustments, count)
+        );
+
+        TestRouteResult result = route.run(HttpRequest.GET("/loyalty/someId"))
+            .assertStatusCode(StatusCodes.OK)
+            .assertContentType(ContentTypes.TEXT_PLAIN_UTF8);
+
+        assertEquals(expectedResponse.toString(), result.entityString());
+    }
+
+    @Test
+    void loyalty_id_shouldRenderJsonWhenItIsAccepted() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyInformation(), new LoyaltyId("someId")),
+            LoyaltyInformation.fromBalanceAdjustments(new int[] { 10, -4 }, 2)
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId").addHeader(Accept.create(MediaRanges.create(MediaTypes.APPLICATION_JSON))))
+            .assertStatusCode(StatusCodes.OK)
+            .assertContentType(ContentTypes.APPLICATION_JSON)
+            .assertEntity("{\"balance\":6,\"adjustmentCount\":2,\"history\":[10,-4]}");
+    }
+
+    @Test
+    void loyalty_id_shouldStreamALongJsonHistory() {
+        int count = LoyaltyMarshallers.HISTORY_CHUNK_SIZE + 1;
+        int[] adjustments = new int[count];
+        StringJoiner history = new StringJoiner(",", "{\"balance\":" + -count + ",\"adjustmentCount\":" + count + ",\"history\":[", "]}");
+
+        for(int i = 0; i < count; i++) {
+            adjustments[i] = -1;
+            history.add("-1");
+        }
+
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyInformation(), new LoyaltyId("someId")),
+            LoyaltyInformation.fromBalanceAdjustments(adjustments, count)
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId").addHeader(Accept.create(MediaRanges.create(MediaTypes.APPLICATION_JSON))))
+            .assertContentType(ContentTypes.APPLICATION_JSON)
+            .assertEntity(history.toString());
+    }
+
+    @Test
+    void loyalty_id_view_balance_shouldRenderJsonWhenItIsPreferred() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyBalance(), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyBalance(25, 3)
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId?view=balance").addHeader(Accept.create(
+                MediaRanges.create(MediaTypes.TEXT_PLAIN, 0.5f),
+                MediaRanges.create(MediaTypes.APPLICATION_JSON)
+            )))
+            .assertContentType(ContentTypes.APPLICATION_JSON)
+            .assertEntity("{\"balance\":25,\"adjustmentCount\":3}");
+    }
+
+    @Test
+    void loyalty_id_deduct_points_shouldRenderARejectionAsJson() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.ApplyLoyaltyAdjustment(new Deduct(30)), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyAdjustmentRejected(new Deduct(30), "Insufficient Points")
+        );
+
+        route.run(HttpRequest.POST("/loyalty/someId/deduct/30").addHeader(Accept.create(MediaRanges.create(MediaTypes.APPLICATION_JSON))))
+            .assertStatusCode(StatusCodes.BAD_REQUEST)
+            .assertContentType(ContentTypes.APPLICATION_JSON)
+            .assertEntity("{\"result\":\"rejected\",\"adjustment\":\"deduct\",\"points\":30,\"reason\":\"Insufficient Points\"}");
+    }
+
+    @Test
+    void loyalty_id_view_shouldRejectAnUnknownView() {
+        route.run(HttpRequest.GET("/loyalty/someId?view=everything"))
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+    }
+
+    @Test
+    void loyalty_id_view_balance_shouldReturnOnlyTheBalance() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyBalance(), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyBalance(25, 3)
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId?view=balance"))
+            .assertStatusCode(StatusCodes.OK)
+            .assertEntity("Current Balance: 25\n");
+    }
+
+    @Test
+    void loyalty_id_view_balance_shouldServeTheBalanceAnAppliedAdjustmentReturned() {
+        BalanceCache cache = new BalanceCache(100, Duration.ofMinutes(1));
+        TestRoute cachedRoute = testRoute(new LoyaltyRoutes(loyaltyActorSupervisor.ref(), LoyaltyRoutes.Timeouts.DEFAULT, Optional.of(cache), Optional.empty(), Optional.empty()).createRoutes());
+
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyBalance(), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyBalance(25, 3)
+        );
+
+        cachedRoute.run(HttpRequest.GET("/loyalty/someId?view=balance"))
+            .assertEntity("Current Balance: 25\n");
+        loyaltyActorSupervisor.expectMsgClass(LoyaltyActorSupervisor.Deliver.class);
+
+        cachedRoute.run(HttpRequest.GET("/loyalty/someId?view=balance"))
+            .assertEntity("Current Balance: 25\n");
+        loyaltyActorSupervisor.expectNoMessage();
+
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(5)), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyAdjustmentApplied(new Award(5), 30, 4)
+        );
+
+        cachedRoute.run(HttpRequest.POST("/loyalty/someId/award/5"))
+            .assertStatusCode(StatusCodes.OK);
+        loyaltyActorSupervisor.expectMsgClass(LoyaltyActorSupervisor.Deliver.class);
+
+        cache.put(new LoyaltyId("someId"), new LoyaltyActor.LoyaltyBalance(25, 3));
+
+        cachedRoute.run(HttpRequest.GET("/loyalty/someId?view=balance"))
+            .assertEntity("Current Balance: 30\n");
+        loyaltyActorSupervisor.expectNoMessage();
+    }
+
+    @Test
+    void loyalty_id_shouldBeRejectedWhenTheAccountIsOverItsAdmissionLimit() {
+        AdmissionController controller = new AdmissionController(
+            ConfigFactory.parseString("max-in-flight-per-account = 1")
+                .withFallback(ConfigFactory.load().getConfig("loyalty.admission")),
+            CinnamonMetrics.get(system())
+        );
+        TestRoute admittedRoute = testRoute(new LoyaltyRoutes(loyaltyActorSupervisor.ref(), LoyaltyRoutes.Timeouts.DEFAULT, Optional.empty(), Optional.empty(), Optional.of(controller)).createRoutes());
+        AdmissionController.Ticket ticket = controller.tryAcquire(new LoyaltyId("someId"));
+
+        admittedRoute.run(HttpRequest.GET("/loyalty/someId"))
+            .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE)
+            .assertHeaderExists(RetryAfter.create(1L));
+        loyaltyActorSupervisor.expectNoMessage();
+
+        ticket.complete(true);
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyBalance(), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyBalance(25, 3)
+        );
+
+        admittedRoute.run(HttpRequest.GET("/loyalty/someId?view=balance"))
+            .assertStatusCode(StatusCodes.OK);
+
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    void loyalty_id_limit_offset_shouldRequestThePageAndListItMostRecentFirst() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyHistory(0, 0), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyHistory(25, 3, 1, new int[] { -5, 10 })
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId?offset=1&limit=2"))
+            .assertStatusCode(StatusCodes.OK)
+            .assertEntity("Current Balance: 25\nHistory:\n- Deduct 5\n- Award 10\n");
+
+        LoyaltyActor.GetLoyaltyHistory query = (LoyaltyActor.GetLoyaltyHistory)
+            loyaltyActorSupervisor.expectMsgClass(LoyaltyActorSupervisor.Deliver.class).getCommand();
+
+        assertEquals(1, query.getOffset());
+        assertEquals(2, query.getLimit());
+    }
+
+    @Test
+    void loyalty_id_offset_shouldDefaultTheLimit() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyHistory(0, 0), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyHistory(0, 0, 0, new int[0])
+        );
+
+        route.run(HttpRequest.GET("/loyalty/someId?offset=0"))
+            .assertStatusCode(StatusCodes.OK);
+
+        LoyaltyActor.GetLoyaltyHistory query = (LoyaltyActor.GetLoyaltyHistory)
+            loyaltyActorSupervisor.expectMsgClass(LoyaltyActorSupervisor.Deliver.class).getCommand();
+
+        assertEquals(0, query.getOffset());
+        assertEquals(LoyaltyRoutes.DEFAULT_HISTORY_PAGE_SIZE, query.getLimit());
+    }
+
+    @Test
+    void loyalty_id_limit_offset_shouldRejectAnInvalidPage() {
+        route.run(HttpRequest.GET("/loyalty/someId?limit=" + (LoyaltyRoutes.MAX_HISTORY_PAGE_SIZE + 1)))
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+
+        loyaltyActorSupervisor.expectNoMessage();
+    }
+
     @Test
     void loyalty_id_award_points_shouldIndicateTheAdjustmentWasAppliedIfItSucceeds() {
         LoyaltyId loyaltyId = new LoyaltyId("someId");
@@ -65,7 +314,7 @@ class LoyaltyRoutesTest extends JUnitRouteTest {
             loyaltyId
         );
 
-        LoyaltyActor.LoyaltyAdjustmentApplied expectedResponse = new LoyaltyActor.LoyaltyAdjustmentApplied(new Award(points));
+        LoyaltyActor.LoyaltyAdjustmentApplied expectedResponse = new LoyaltyActor.LoyaltyAdjustmentApplied(new Award(points), points, 1);
 
         setAutoPilot(expectedRequest, expectedResponse);
 
@@ -94,6 +343,55 @@ class LoyaltyRoutesTest extends JUnitRouteTest {
             .assertEntity("Rejected: Award "+expectedResponse.getAdjustment().getPoints());
     }
 
+    @Test
+    void loyalty_id_award_and_deduct_shouldRejectZeroPoints() {
+        route.run(HttpRequest.POST("/loyalty/someId/award/0"))
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+        route.run(HttpRequest.POST("/loyalty/someId/deduct/0"))
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+
+        loyaltyActorSupervisor.expectNoMessage();
+    }
+
+    @Test
+    void loyalty_id_award_points_shouldBeUnavailableIfTheAccountCouldNotBeLoaded() {
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(30)), new LoyaltyId("someId")),
+            new LoyaltyActor.LoyaltyAdjustmentRejected(new Award(30), LoyaltyActor.ACCOUNT_UNAVAILABLE, true)
+        );
+
+        route.run(HttpRequest.POST("/loyalty/someId/award/30"))
+            .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE)
+            .assertHeaderExists(RetryAfter.create(1L))
+            .assertEntity("Rejected: Award 30");
+    }
+
+    @Test
+    void loyalty_id_shouldBeUnavailableWithoutLoweringTheAdmissionLimitIfTheAccountCouldNotBeLoaded() {
+        AdmissionController controller = new AdmissionController(
+            ConfigFactory.load().getConfig("loyalty.admission"),
+            CinnamonMetrics.get(system())
+        );
+        TestRoute admittedRoute = testRoute(new LoyaltyRoutes(loyaltyActorSupervisor.ref(), LoyaltyRoutes.Timeouts.DEFAULT, Optional.empty(), Optional.empty(), Optional.of(controller)).createRoutes());
+        int limit = controller.getLimit();
+
+        setAutoPilot(
+            new LoyaltyActorSupervisor.Deliver(new LoyaltyActor.GetLoyaltyInformation(), new LoyaltyId("someId")),
+            new LoyaltyActor.AccountUnavailable()
+        );
+
+        admittedRoute.run(HttpRequest.GET("/loyalty/someId"))
+            .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE)
+            .assertHeaderExists(RetryAfter.create(1L));
+        admittedRoute.run(HttpRequest.GET("/loyalty/someId?view=balance"))
+            .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+        admittedRoute.run(HttpRequest.GET("/loyalty/someId?offset=0"))
+            .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+
+        assertEquals(0, controller.getInFlight());
+        assertEquals(limit, controller.getLimit());
+    }
+
     @Test
     void loyalty_id_deduct_points_shouldIndicateTheAdjustmentWasAppliedIfItSucceeds() {
         LoyaltyId loyaltyId = new LoyaltyId("someId");
@@ -103,7 +401,7 @@ class LoyaltyRoutesTest extends JUnitRouteTest {
                 loyaltyId
         );
 
-        LoyaltyActor.LoyaltyAdjustmentApplied expectedResponse = new LoyaltyActor.LoyaltyAdjustmentApplied(new Deduct(points));
+        LoyaltyActor.LoyaltyAdjustmentApplied expectedResponse = new LoyaltyActor.LoyaltyAdjustmentApplied(new Deduct(points), 0, 2);
 
         setAutoPilot(expectedRequest, expectedResponse);
 
@@ -132,6 +430,196 @@ class LoyaltyRoutesTest extends JUnitRouteTest {
                 .assertEntity("Rejected: Deduct "+expectedResponse.getAdjustment().getPoints());
     }
 
+    @Test
+    void loyalty_batch_shouldApplyTheEntriesPerAccountAndReportEachResult() {
+        loyaltyActorSupervisor.setAutoPilot(new TestActor.AutoPilot() {
+            @Override
+            public TestActor.AutoPilot run(ActorRef sender, Object msg) {
+                LoyaltyActor.ApplyLoyaltyAdjustments command = (LoyaltyActor.ApplyLoyaltyAdjustments)
+                    ((LoyaltyActorSupervisor.Deliver) msg).getCommand();
+                List<LoyaltyActor.Event> results = new ArrayList<>();
+
+                for(LoyaltyAdjustment adjustment : command.getAdjustments()) {
+                    if(adjustment instanceof Deduct)
+                        results.add(new LoyaltyActor.LoyaltyAdjustmentRejected(adjustment, "Insufficient Points"));
+                    else
+                        results.add(new LoyaltyActor.LoyaltyAdjustmentApplied(adjustment, adjustment.getPoints(), 1));
+                }
+
+                sender.tell(new LoyaltyActor.LoyaltyAdjustmentsProcessed(results), loyaltyActorSupervisor.ref());
+
+                return keepRunning();
+            }
+        });
+
+        String batch = "[" +
+            "{\"account\":\"a\",\"adjustment\":\"award\",\"points\":10}," +
+            "{\"account\":\"b\",\"adjustment\":\"deduct\",\"points\":5}," +
+            "{\"account\":\"a\",\"adjustment\":\"award\",\"points\":20}" +
+            "]";
+
+        route.run(HttpRequest.POST("/loyalty/batch").withEntity(ContentTypes.APPLICATION_JSON, batch))
+            .assertStatusCode(StatusCodes.OK)
+            .assertContentType(ContentTypes.APPLICATION_JSON)
+            .assertEntity("[" +
+                "{\"account\":\"a\",\"adjustment\":\"award\",\"points\":10,\"result\":\"applied\"}," +
+                "{\"account\":\"b\",\"adjustment\":\"deduct\",\"points\":5,\"result\":\"rejected\",\"reason\":\"Insufficient Points\"}," +
+                "{\"account\":\"a\",\"adjustment\":\"award\",\"points\":20,\"result\":\"applied\"}" +
+                "]");
+
+        LoyaltyActorSupervisor.Deliver first = loyaltyActorSupervisor.expectMsgClass(LoyaltyActorSupervisor.Deliver.class);
+        List<LoyaltyAdjustment> adjustments = ((LoyaltyActor.ApplyLoyaltyAdjustments) first.getCommand()).getAdjustments();
+
+        assertEquals(new LoyaltyId("a"), first.getTo());
+        assertEquals(2, adjustments.size());
+        assertEquals(20, adjustments.get(1).getPoints());
+    }
+
+    @Test
+    void loyalty_batch_shouldRejectAnInvalidBatch() {
+        String batch = "[{\"account\":\"a\",\"adjustment\":\"refund\",\"points\":10}]";
+
+        route.run(HttpRequest.POST("/loyalty/batch").withEntity(ContentTypes.APPLICATION_JSON, batch))
+            .assertStatusCode(StatusCodes.BAD_REQUEST)
+            .assertEntity("Invalid Batch: Unknown adjustment for a: refund");
+    }
+
+    private void replyToEachAdjustment() {
+        loyaltyActorSupervisor.setAutoPilot(new TestActor.AutoPilot() {
+            @Override
+            public TestActor.AutoPilot run(ActorRef sender, Object msg) {
+                LoyaltyAdjustment adjustment = ((LoyaltyActor.ApplyLoyaltyAdjustment)
+                    ((LoyaltyActorSupervisor.Deliver) msg).getCommand()).getAdjustment();
+
+                if(adjustment instanceof Deduct)
+                    sender.tell(new LoyaltyActor.LoyaltyAdjustmentRejected(adjustment, "Insufficient Points"), loyaltyActorSupervisor.ref());
+                else
+                    sender.tell(new LoyaltyActor.LoyaltyAdjustmentApplied(adjustment, adjustment.getPoints(), 1), loyaltyActorSupervisor.ref());
+
+                return keepRunning();
+            }
+        });
+    }
+
+    private Set<String> lines(String body) {
+        return new HashSet<>(Arrays.asList(body.split("\n")));
+    }
+
+    @Test
+    void loyalty_ingest_shouldStreamAResultForEachNdjsonLine() {
+        replyToEachAdjustment();
+
+        String body =
+            "{\"account\":\"a\",\"adjustment\":\"award\",\"points\":10}\n" +
+            "{\"account\":\"b\",\"adjustment\":\"deduct\",\"points\":5}\n" +
+            "\n" +
+            "not json\n";
+
+        TestRouteResult result = route.run(HttpRequest.POST("/loyalty/ingest").withEntity(LoyaltyRoutes.NDJSON, body))
+            .assertStatusCode(StatusCodes.OK)
+            .assertContentType(LoyaltyRoutes.NDJSON);
+
+        Set<String> lines = lines(result.entityString());
+
+        assertEquals(3, lines.size());
+        assertTrue(lines.contains("{\"line\":1,\"account\":\"a\",\"adjustment\":\"award\",\"points\":10,\"result\":\"applied\"}"));
+        assertTrue(lines.contains("{\"line\":2,\"account\":\"b\",\"adjustment\":\"deduct\",\"points\":5,\"result\":\"rejected\",\"reason\":\"Insufficient Points\"}"));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("{\"line\":4,\"result\":\"invalid\"")));
+    }
+
+    @Test
+    void loyalty_ingest_shouldHoldItsAdmissionUntilTheStreamEnds() {
+        AdmissionController controller = new AdmissionController(
+            ConfigFactory.load().getConfig("loyalty.admission"),
+            CinnamonMetrics.get(system())
+        );
+        TestRoute admittedRoute = testRoute(new LoyaltyRoutes(loyaltyActorSupervisor.ref(), LoyaltyRoutes.Timeouts.DEFAULT, Optional.empty(), Optional.empty(), Optional.of(controller)).createRoutes());
+        int limit = controller.getLimit();
+
+        replyToEachAdjustment();
+
+        String body = "{\"account\":\"a\",\"adjustment\":\"award\",\"points\":10}\n";
+
+        admittedRoute.run(HttpRequest.POST("/loyalty/ingest").withEntity(LoyaltyRoutes.NDJSON, body))
+            .assertStatusCode(StatusCodes.OK);
+
+        new TestKit(system()).awaitCond(() -> controller.getInFlight() == 0);
+        assertEquals(limit, controller.getLimit());
+    }
+
+    @Test
+    void loyalty_ingest_shouldReportAnOversizedLineAsInvalid() {
+        TestRoute shortLineRoute = testRoute(new LoyaltyRoutes(loyaltyActorSupervisor.ref(), LoyaltyRoutes.Timeouts.DEFAULT, Optional.empty(), Optional.empty(), Optional.empty(), 16).createRoutes());
+
+        replyToEachAdjustment();
+
+        String body = "a,award,10\n" + "b,award,10".repeat(10) + "\nc,award,10";
+
+        TestRouteResult result = shortLineRoute.run(HttpRequest.POST("/loyalty/ingest").withEntity(ContentTypes.create(MediaTypes.TEXT_CSV, HttpCharsets.UTF_8), body))
+            .assertStatusCode(StatusCodes.OK);
+
+        Set<String> lines = lines(result.entityString());
+
+        assertEquals(3, lines.size());
+        assertTrue(lines.contains("{\"line\":1,\"account\":\"a\",\"adjustment\":\"award\",\"points\":10,\"result\":\"applied\"}"));
+        assertTrue(lines.contains("{\"line\":2,\"result\":\"invalid\",\"reason\":\"Longer than 16 bytes\"}"));
+        assertTrue(lines.contains("{\"line\":3,\"account\":\"c\",\"adjustment\":\"award\",\"points\":10,\"result\":\"applied\"}"));
+    }
+
+    @Test
+    void loyalty_ingest_shouldReleaseItsAdmissionIfTheResponseIsNeverRead() throws Exception {
+        AdmissionController controller = new AdmissionController(
+            ConfigFactory.load().getConfig("loyalty.admission"),
+            CinnamonMetrics.get(system())
+        );
+        LoyaltyRoutes.Timeouts timeouts = new LoyaltyRoutes.Timeouts(
+            Duration.ofSeconds(5),
+            Duration.ofSeconds(5),
+            Duration.ofSeconds(5),
+            Duration.ofMillis(200)
+        );
+        Route admittedRoute = new LoyaltyRoutes(loyaltyActorSupervisor.ref(), timeouts, Optional.empty(), Optional.empty(), Optional.of(controller)).createRoutes();
+
+        String body = "a,award,10\n";
+
+        HttpResponse response = admittedRoute.handler(system())
+            .apply(HttpRequest.POST("/loyalty/ingest").withEntity(ContentTypes.create(MediaTypes.TEXT_CSV, HttpCharsets.UTF_8), body))
+            .toCompletableFuture()
+            .get();
+
+        assertEquals(StatusCodes.OK, response.status());
+        new TestKit(system()).awaitCond(() -> controller.getInFlight() == 0);
+    }
+
+    @Test
+    void loyalty_ingest_shouldAcceptCsvLines() {
+        replyToEachAdjustment();
+
+        String body = "a,award,10\nb,award,oops\n";
+
+        TestRouteResult result = route.run(HttpRequest.POST("/loyalty/ingest").withEntity(ContentTypes.create(MediaTypes.TEXT_CSV, HttpCharsets.UTF_8), body))
+            .assertStatusCode(StatusCodes.OK);
+
+        Set<String> lines = lines(result.entityString());
+
+        assertEquals(2, lines.size());
+        assertTrue(lines.contains("{\"line\":1,\"account\":\"a\",\"adjustment\":\"award\",\"points\":10,\"result\":\"applied\"}"));
+        assertTrue(lines.contains("{\"line\":2,\"result\":\"invalid\",\"reason\":\"For input string: \\\"oops\\\"\"}"));
+    }
+
+    @Test
+    void loyalty_batch_and_ingest_shouldRejectZeroPoints() {
+        route.run(HttpRequest.POST("/loyalty/batch").withEntity(ContentTypes.APPLICATION_JSON, "[{\"account\":\"a\",\"adjustment\":\"deduct\",\"points\":0}]"))
+            .assertStatusCode(StatusCodes.BAD_REQUEST)
+            .assertEntity("Invalid Batch: Points must be positive for a");
+
+        TestRouteResult result = route.run(HttpRequest.POST("/loyalty/ingest").withEntity(ContentTypes.create(MediaTypes.TEXT_CSV, HttpCharsets.UTF_8), "a,award,0\n"))
+            .assertStatusCode(StatusCodes.OK);
+
+        assertEquals("{\"line\":1,\"result\":\"invalid\",\"reason\":\"Points must be positive for a\"}\n", result.entityString());
+        loyaltyActorSupervisor.expectNoMessage();
+    }
+
     @AfterEach
     void teardown() {
         systemResource().after();
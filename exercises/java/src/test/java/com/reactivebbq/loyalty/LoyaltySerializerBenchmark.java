@@ -0,0 +1,81 @@
+package com.reactivebbq.loyalty;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.Serializers;
+import akka.serialization.jackson.JacksonCborSerializer;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.NotSerializableException;
+import java.util.concurrent.TimeUnit;
+
+// Compares the compact serializer with the Jackson CBOR path it replaced.
+// After mvn test-compile, run org.openjdk.jmh.Main LoyaltySerializerBenchmark
+// with the test classpath.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoyaltySerializerBenchmark {
+    private ActorSystem system;
+    private JacksonCborSerializer jackson;
+    private LoyaltySerializer compact;
+
+    private LoyaltyActorSupervisor.Deliver deliver;
+    private LoyaltyInformation information;
+
+    @Setup
+    public void setup() {
+        // The loyalty messages are bound to the compact serializer, so
+        // Jackson has to be told it may still handle them here.
+        system = ActorSystem.create("benchmark", ConfigFactory
+            .parseString("akka.serialization.jackson.allowed-class-prefix = [\"com.reactivebbq.loyalty\"]")
+            .withFallback(ConfigFactory.load()));
+        jackson = new JacksonCborSerializer((ExtendedActorSystem) system, "jackson-cbor");
+        compact = new LoyaltySerializer();
+
+        deliver = new LoyaltyActorSupervisor.Deliver(
+            new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)),
+            new LoyaltyId("1f0d3c7e-8a52-4b0e-9d3c-5a4b2f1e0c9d")
+        );
+
+        information = LoyaltyInformation.empty;
+
+        for(int i = 1; i <= 100; i++) {
+            information = information.applyAdjustment(i % 4 == 0 ? new Deduct(i) : new Award(i * 2));
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Benchmark
+    public Object deliverWithJackson() throws NotSerializableException {
+        return jackson.fromBinary(jackson.toBinary(deliver), Serializers.manifestFor(jackson, deliver));
+    }
+
+    @Benchmark
+    public Object deliverWithCompactSerializer() throws NotSerializableException {
+        return compact.fromBinary(compact.toBinary(deliver), compact.manifest(deliver));
+    }
+
+    @Benchmark
+    public Object loyaltyInformationWithJackson() throws NotSerializableException {
+        return jackson.fromBinary(jackson.toBinary(information), Serializers.manifestFor(jackson, information));
+    }
+
+    @Benchmark
+    public Object loyaltyInformationWithCompactSerializer() throws NotSerializableException {
+        return compact.fromBinary(compact.toBinary(information), compact.manifest(information));
+    }
+}
@@ -0,0 +1,199 @@
+package com.reactivebbq.loyalty;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import akka.testkit.javadsl.TestKit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.NotSerializableException;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoyaltySerializerTest {
+    private static ActorSystem system;
+    private static Serialization serialization;
+
+    @BeforeAll
+    static void setup() {
+        system = ActorSystem.create();
+        serialization = SerializationExtension.get(system);
+    }
+
+    @AfterAll
+    static void teardown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T roundTrip(T message) {
+        Serializer serializer = serialization.findSerializerFor(message);
+        byte[] bytes = serialization.serialize(message).get();
+
+        assertEquals(LoyaltySerializer.IDENTIFIER, serializer.identifier());
+
+        return (T) serialization
+            .deserialize(bytes, serializer.identifier(), Serializers.manifestFor(serializer, message))
+            .get();
+    }
+
+    @Test
+    void applyLoyaltyAdjustment_shouldKeepTheKindOfTheSmallestDeduct() {
+        LoyaltyActor.ApplyLoyaltyAdjustment result = roundTrip(
+            new LoyaltyActor.ApplyLoyaltyAdjustment(new Deduct(1))
+        );
+
+        assertTrue(result.getAdjustment() instanceof Deduct);
+        assertEquals(1, result.getAdjustment().getPoints());
+        assertEquals(-1, result.getAdjustment().getBalanceAdjustment());
+    }
+
+    @Test
+    void applyLoyaltyAdjustment_shouldKeepTheLargestAward() {
+        LoyaltyActor.ApplyLoyaltyAdjustment result = roundTrip(
+            new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(Integer.MAX_VALUE))
+        );
+
+        assertTrue(result.getAdjustment() instanceof Award);
+        assertEquals(Integer.MAX_VALUE, result.getAdjustment().getPoints());
+    }
+
+    @Test
+    void deliver_shouldRoundTripWithItsCommand() {
+        LoyaltyActorSupervisor.Deliver result = roundTrip(new LoyaltyActorSupervisor.Deliver(
+            new LoyaltyActor.ApplyLoyaltyAdjustment(new Deduct(300)),
+            new LoyaltyId("account")
+        ));
+
+        LoyaltyAdjustment adjustment = ((LoyaltyActor.ApplyLoyaltyAdjustment) result.getCommand()).getAdjustment();
+
+        assertEquals(new LoyaltyId("account"), result.getTo());
+        assertTrue(adjustment instanceof Deduct);
+        assertEquals(300, adjustment.getPoints());
+    }
+
+    @Test
+    void deliver_shouldRoundTripItsDeadline() {
+        Duration timeLeft = Duration.ofSeconds(5);
+        LoyaltyActorSupervisor.Deliver result = roundTrip(new LoyaltyActorSupervisor.Deliver(
+            new LoyaltyActor.GetLoyaltyBalance(),
+            new LoyaltyId("account"),
+            timeLeft
+        ));
+        LoyaltyActor.WithDeadline command = roundTrip((LoyaltyActor.WithDeadline) result.getEntityMessage());
+
+        assertTrue(result.getTimeLeft().get().compareTo(timeLeft) <= 0);
+        assertTrue(result.getTimeLeft().get().compareTo(timeLeft.minusSeconds(1)) > 0);
+        assertTrue(command.getTimeLeft().compareTo(timeLeft.minusSeconds(1)) > 0);
+        assertTrue(command.getCommand() instanceof LoyaltyActor.GetLoyaltyBalance);
+    }
+
+    @Test
+    void deliver_shouldRoundTripWithoutADeadline() {
+        LoyaltyActorSupervisor.Deliver result = roundTrip(new LoyaltyActorSupervisor.Deliver(
+            new LoyaltyActor.GetLoyaltyBalance(),
+            new LoyaltyId("account")
+        ));
+
+        assertTrue(result.getTimeLeft().isEmpty());
+        assertTrue(result.getEntityMessage() instanceof LoyaltyActor.GetLoyaltyBalance);
+    }
+
+    @Test
+    void deliver_shouldKeepADeadlineThatHasPassed() {
+        LoyaltyActorSupervisor.Deliver result = roundTrip(new LoyaltyActorSupervisor.Deliver(
+            new LoyaltyActor.GetLoyaltyBalance(),
+            new LoyaltyId("account"),
+            Duration.ofSeconds(-1)
+        ));
+
+        assertTrue(((LoyaltyActor.WithDeadline) result.getEntityMessage()).isExpired());
+    }
+
+    @Test
+    void adjustmentsProcessed_shouldRoundTripEachResult() {
+        LoyaltyActor.LoyaltyAdjustmentsProcessed result = roundTrip(new LoyaltyActor.LoyaltyAdjustmentsProcessed(List.of(
+            new LoyaltyActor.LoyaltyAdjustmentApplied(new Award(10), -5, 7),
+            new LoyaltyActor.LoyaltyAdjustmentRejected(new Deduct(20), "Insufficient Points")
+        )));
+
+        LoyaltyActor.LoyaltyAdjustmentRejected rejected = (LoyaltyActor.LoyaltyAdjustmentRejected) result.getResults().get(1);
+
+        assertEquals(10, ((LoyaltyActor.LoyaltyAdjustmentApplied) result.getResults().get(0)).getAdjustment().getPoints());
+        assertEquals(-5, ((LoyaltyActor.LoyaltyAdjustmentApplied) result.getResults().get(0)).getCurrentTotal());
+        assertEquals(7, ((LoyaltyActor.LoyaltyAdjustmentApplied) result.getResults().get(0)).getAdjustmentCount());
+        assertEquals(20, rejected.getAdjustment().getPoints());
+        assertEquals("Insufficient Points", rejected.getReason());
+        assertFalse(rejected.isRetryable());
+    }
+
+    @Test
+    void accountUnavailable_shouldRoundTripAsRetryable() {
+        LoyaltyActor.LoyaltyAdjustmentRejected rejected = roundTrip(
+            new LoyaltyActor.LoyaltyAdjustmentRejected(new Award(10), LoyaltyActor.ACCOUNT_UNAVAILABLE, true)
+        );
+
+        assertTrue(rejected.isRetryable());
+        assertTrue(roundTrip(new LoyaltyActor.AccountUnavailable()) instanceof LoyaltyActor.AccountUnavailable);
+    }
+
+    @Test
+    void loyaltyInformation_shouldRoundTripASnapshot() {
+        LoyaltyInformation info = LoyaltyInformation.fromSnapshot(1000, 5000, new int[] { 10, -20, 300000 }, 3);
+
+        LoyaltyInformation result = roundTrip(info);
+
+        assertEquals(info.getCurrentTotal(), result.getCurrentTotal());
+        assertEquals(info.getHistoryOffset(), result.getHistoryOffset());
+        assertEquals(1003, result.getAdjustmentCount());
+        assertEquals(-20, result.getBalanceAdjustment(1001));
+    }
+
+    @Test
+    void loyaltyHistory_shouldRoundTripThePage() {
+        LoyaltyActor.LoyaltyHistory result = roundTrip(new LoyaltyActor.LoyaltyHistory(-50, 1003, 20, new int[] { -20, 300000 }));
+
+        assertEquals(-50, result.getCurrentTotal());
+        assertEquals(1003, result.getAdjustmentCount());
+        assertEquals(20, result.getOffset());
+        assertArrayEquals(new int[] { -20, 300000 }, result.getBalanceAdjustments());
+    }
+
+    @Test
+    void queries_shouldRoundTrip() {
+        LoyaltyActor.GetLoyaltyHistory query = roundTrip(new LoyaltyActor.GetLoyaltyHistory(40, 20));
+        LoyaltyActor.LoyaltyBalance balance = roundTrip(new LoyaltyActor.LoyaltyBalance(75, 12));
+
+        assertEquals(40, query.getOffset());
+        assertEquals(20, query.getLimit());
+        assertTrue(roundTrip(new LoyaltyActor.GetLoyaltyBalance()) instanceof LoyaltyActor.GetLoyaltyBalance);
+        assertEquals(75, balance.getCurrentTotal());
+        assertEquals(12, balance.getAdjustmentCount());
+    }
+
+    @Test
+    void loyaltyBalanceChanged_shouldRoundTrip() {
+        LoyaltyActor.LoyaltyBalanceChanged result = roundTrip(new LoyaltyActor.LoyaltyBalanceChanged(new LoyaltyId("account"), -15, 7));
+
+        assertEquals(new LoyaltyId("account"), result.getLoyaltyId());
+        assertEquals(-15, result.getCurrentTotal());
+        assertEquals(7, result.getAdjustmentCount());
+    }
+
+    @Test
+    void messages_shouldBeSmallerThanWithJackson() throws NotSerializableException {
+        LoyaltyActorSupervisor.Deliver deliver = new LoyaltyActorSupervisor.Deliver(
+            new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)),
+            new LoyaltyId("account")
+        );
+        Serializer jackson = serialization.serializerFor(SerializableMessage.class);
+
+        assertTrue(serialization.serialize(deliver).get().length * 4 < jackson.toBinary(deliver).length);
+    }
+}
@@ -0,0 +1,90 @@
+package com.reactivebbq.loyalty;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ReplicatedBalancesTest {
+    private ActorSystem system;
+    private ReplicatedBalances balances;
+
+    @BeforeAll
+    void setup() {
+        system = ActorSystem.create("replicated", ConfigFactory
+            .parseString(
+                "akka.actor.provider = cluster\n" +
+                "akka.remote.artery.canonical.hostname = 127.0.0.1\n" +
+                "akka.remote.artery.canonical.port = 0\n" +
+                "loyalty.replicated-balances.enabled = on\n" +
+                "loyalty.replicated-balances.number-of-keys = 10"
+            )
+            .withFallback(ConfigFactory.load()));
+
+        Cluster cluster = Cluster.get(system);
+        cluster.join(cluster.selfAddress());
+
+        balances = ReplicatedBalances.fromConfig(system).get();
+    }
+
+    @AfterAll
+    void teardown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    private Optional<LoyaltyActor.LoyaltyBalance> get(LoyaltyId loyaltyId) {
+        return balances.get(loyaltyId).toCompletableFuture().join();
+    }
+
+    @Test
+    void get_shouldBeEmptyForAnUnknownAccount() {
+        assertEquals(Optional.empty(), get(new LoyaltyId(UUID.randomUUID().toString())));
+    }
+
+    @Test
+    void publish_shouldNotReplaceABalanceWithAnOlderOne() {
+        LoyaltyId loyaltyId = new LoyaltyId(UUID.randomUUID().toString());
+        TestKit probe = new TestKit(system);
+
+        balances.publish(loyaltyId, new LoyaltyActor.LoyaltyBalance(30, 3), probe.getRef());
+        balances.publish(loyaltyId, new LoyaltyActor.LoyaltyBalance(10, 1), probe.getRef());
+        probe.receiveN(2);
+
+        assertEquals(30, get(loyaltyId).get().getCurrentTotal());
+    }
+
+    @Test
+    void theActor_shouldPublishItsBalanceAfterEachWrite() {
+        LoyaltyId loyaltyId = new LoyaltyId(UUID.randomUUID().toString());
+        LoyaltyRepository repository = new InMemoryLoyaltyRepository(Executors.newSingleThreadExecutor());
+        ActorRef actor = system.actorOf(LoyaltyActor.create(repository), loyaltyId.getValue());
+        TestKit probe = new TestKit(system);
+
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Award(10)), probe.getRef());
+        actor.tell(new LoyaltyActor.ApplyLoyaltyAdjustment(new Deduct(4)), probe.getRef());
+        probe.receiveN(2);
+
+        probe.awaitAssert(Duration.ofSeconds(3), () -> {
+            Optional<LoyaltyActor.LoyaltyBalance> balance = get(loyaltyId);
+
+            assertTrue(balance.isPresent());
+            assertEquals(6, balance.get().getCurrentTotal());
+            assertEquals(2, balance.get().getAdjustmentCount());
+            return null;
+        });
+    }
+}